@@ -0,0 +1,94 @@
+import javax.sound.sampled.*;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Single producer/single consumer ring buffer between the emulation thread,
+ * which writes each frame of samples from PSG.output, and a dedicated thread
+ * that feeds them to the sound card. Neither side ever takes a lock or waits
+ * for the other: the emulation thread drops samples when the ring is full
+ * (an overrun) and the audio thread idles when it is empty (an underrun).
+ * The audio thread keeps only a few frames queued in the line itself so the
+ * ring's fill level reflects the real backlog.
+ */
+
+public final class AudioOutput extends Thread {
+  private SourceDataLine line;
+  private byte[] ring;
+  private int mask;
+  private byte[] chunk;
+  private int latency;                    // bytes to keep queued in the sound card's own buffer
+  private volatile long head, tail;       // bytes ever written / read; only the owning thread stores each
+  private volatile boolean running;
+  private boolean starving;
+
+  public volatile long underruns, overruns;
+
+  public AudioOutput(SourceDataLine line, int size, int latency) { // size must be a power of 2
+    super("Remaster audio");
+    this.line = line;
+    this.latency = latency;
+    ring = new byte[size];
+    mask = size - 1;
+    chunk = new byte[size];
+    running = true;
+
+    setDaemon(true);
+    setPriority(Thread.MAX_PRIORITY);
+  }
+
+  /* public final void write(byte[] data, int offset, int length)
+   *   Called from the emulation thread only.
+   */
+  public final void write(byte[] data, int offset, int length) {
+    long h = head;
+    int free = ring.length - (int)(h - tail);
+    if(length > free) { overruns++; length = free; }
+
+    int start = (int)h & mask;
+    int first = Math.min(length, ring.length - start);
+    System.arraycopy(data, offset, ring, start, first);
+    System.arraycopy(data, offset + first, ring, 0, length - first);
+    head = h + length; // publishes the samples to the audio thread
+  }
+
+  // Number of bytes waiting to be handed to the sound card.
+  public final int buffered() {
+    return (int)(head - tail);
+  }
+
+  /* public void shutdown()
+   *   Ends the audio thread, which closes the line once it is out of its loop.
+   */
+  public void shutdown() {
+    running = false;
+    interrupt(); // cuts its idle park short
+  }
+
+  public String stats() {
+    return underruns + " underruns, " + overruns + " overruns";
+  }
+
+  public void run() {
+    while(running) {
+      long t = tail;
+      int n = (int)(head - t);
+      int queued = line.getBufferSize() - line.available();
+      if(n == 0 || queued >= latency) {
+        if(n == 0 && queued == 0 && !starving) { underruns++; starving = true; }
+        LockSupport.parkNanos(1000000);
+        continue;
+      }
+      starving = false;
+      n = Math.min(n, latency - queued);
+
+      int start = (int)t & mask;
+      int first = Math.min(n, ring.length - start);
+      System.arraycopy(ring, start, chunk, 0, first);
+      System.arraycopy(ring, 0, chunk, first, n - first);
+      tail = t + n; // frees the space for the emulation thread
+
+      line.write(chunk, 0, n); // fits in the line's free space, so this does not block
+    }
+    line.close();
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Microbenchmark of the Sega mapper: times writes to the bank registers at
+ * $FFFD, $FFFE and $FFFF of a rom's MemoryManager, each followed by a read
+ * from the page it switched so the new mapping is used, and prints the cost
+ * of one switch in nanoseconds (best of a few passes), and in host cycles when
+ * the host's clock is given. The rom should have several banks; bank-heavy
+ * games switch dozens of times per frame.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar BankSwitchBenchmark <rom> [switches] [host GHz]
+ */
+
+public final class BankSwitchBenchmark {
+  static final int PASSES = 5;
+
+  public static void main(String args[]) {
+    if(args.length < 1) {
+      System.out.println("Usage: BankSwitchBenchmark <rom> [switches] [host GHz]");
+      System.exit(1);
+    }
+    int switches = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+    double ghz = (args.length > 2) ? Double.parseDouble(args[2]) : 0;
+
+    Cartridge cart = new Cartridge();
+    cart.load(args[0]);
+    if(!cart.isLoaded()) System.exit(1);
+    MemoryManager memory = new MemoryManager(cart);
+    memory.loadFromCartridge();
+
+    int banks = Math.max(cart.getRomSize() >> 14, 1);
+    int[] registers = { 0xFFFD, 0xFFFE, 0xFFFF }, pages = { 0x0400, 0x4000, 0x8000 };
+    for(int r=0; r < 3; r++) {
+      double best = Double.MAX_VALUE;
+      int sum = 0;
+      for(int pass=0; pass < PASSES; pass++) {
+        long start = System.nanoTime();
+        for(int i=0; i < switches; i++) {
+          memory.writebyte(registers[r], i % banks);
+          sum += memory.readbyte(pages[r] + (i & 0xFF));
+        }
+        best = Math.min(best, (double)(System.nanoTime() - start) / switches);
+      }
+      System.out.println("BANKSWITCH: $" + Integer.toHexString(registers[r]).toUpperCase() + ": " + Math.round(best * 10) / 10.0 + " ns"
+                         + ((ghz > 0) ? " (" + Math.round(best * ghz) + " cycles)" : "") + " per switch, "
+                         + banks + " banks, checksum " + Integer.toHexString(sum));
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Measures what armed breakpoints and watchpoints cost the emulation: runs a
+ * rom headless under each setup below and prints the frames/sec (best of a few
+ * passes) and the CRC of the final machine state, which must be the same for
+ * all of them. Hits are only counted and never suspend the run. A first pass
+ * warms up the JIT and is discarded, and each pass runs every setup in turn,
+ * so that none of them is favoured by running first or last.
+ *
+ *   none     no Breakpoints object at all
+ *   empty    a Breakpoints object with nothing armed, as the debugger passes
+ *   pc1      1 breakpoint
+ *   pc50     50 breakpoints
+ *   pc50if   49 breakpoints and one on the IRQ handler at $0038 if a==100
+ *   wr1      1 write watchpoint (the top of the stack)
+ *   rd50     25 read and 25 write watchpoints in ram
+ *   port50   25 input and 25 output watchpoints
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar BreakpointBenchmark <rom> [frames] [setup...]
+ */
+
+public final class BreakpointBenchmark {
+  static final String[] SETUPS = { "none", "empty", "pc1", "pc50", "pc50if", "wr1", "rd50", "port50" };
+  static final int PASSES = 3;
+
+  static Breakpoints setup(String name) {
+    if(name.equals("none")) return null;
+    Breakpoints bp = new Breakpoints();
+    bp.suspendOnHit = false;
+    if(name.equals("empty")) return bp;
+    if(name.equals("pc1")) bp.command("bp 7ff0");
+    else if(name.equals("pc50") || name.equals("pc50if")) {
+      int n = name.equals("pc50") ? 50 : 49;
+      for(int i=0; i < n; i++) bp.command("bp " + Integer.toHexString(0x7F00 + i * 3));
+      if(n == 49) bp.command("bp 38 if a==100");
+    }
+    else if(name.equals("wr1")) bp.command("wr dff0");
+    else if(name.equals("rd50")) { bp.command("rd c100-c118"); bp.command("wr c200-c218"); }
+    else if(name.equals("port50")) { bp.command("in 00-18"); bp.command("out 00-18"); }
+    else throw new IllegalArgumentException("unknown setup " + name);
+    return bp;
+  }
+
+  public static void main(String args[]) {
+    if(args.length < 1) {
+      System.out.println("Usage: BreakpointBenchmark <rom> [frames] [setup...]");
+      System.exit(1);
+    }
+    int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 3600;
+    String[] setups = SETUPS;
+    if(args.length > 2) {
+      setups = new String[args.length - 2];
+      System.arraycopy(args, 2, setups, 0, setups.length);
+    }
+
+    Cartridge cart = new Cartridge();
+    cart.load(args[0]);
+    if(!cart.isLoaded()) System.exit(1);
+
+    Breakpoints[] bps = new Breakpoints[setups.length];
+    for(int s=0; s < setups.length; s++) bps[s] = setup(setups[s]);
+    double[] best = new double[setups.length];
+    long[] crc = new long[setups.length];
+    for(int pass=0; pass <= PASSES; pass++) {  // pass 0 is the warm-up
+      for(int s=0; s < setups.length; s++) {
+        Headless emu = new Headless(cart);
+        long start = System.nanoTime();
+        for(int f=0; f < frames; f++) {
+          emu.z80.setBreakpoints(bps[s]);  // once per frame, as MainThread does
+          emu.machine.emulateFrame(true);
+        }
+        if(pass > 0) best[s] = Math.max(best[s], frames / ((System.nanoTime() - start) / 1e9));
+        crc[s] = emu.stateCrc();
+      }
+    }
+    for(int s=0; s < setups.length; s++)
+      System.out.println("BREAKPOINTS: " + setups[s] + ": " + Math.round(best[s]) + " frames/sec, "
+                         + ((bps[s] != null) ? bps[s].hits / (PASSES + 1) : 0) + " hits, state crc " + Long.toHexString(crc[s]));
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Breakpoints and watchpoints for the debugger. Nothing here is consulted while
+ * none are armed: EZ80.setBreakpoints switches to an instrumented execute loop
+ * only when some breakpoint is armed, and swaps the memory and ports the CPU
+ * sees for the watching versions below only when a watchpoint of that kind is.
+ *
+ * Breakpoints are edited with commands (see command()), from any thread; the
+ * emulation thread picks up the changes at the next frame.
+ *
+ *   bp 0038                    stop before executing $0038
+ *   bp 0038 if a==3 && hl!=c000   ... only when all the register conditions hold
+ *   rd c000-c0ff, wr dff0      stop after an instruction that reads/writes there
+ *   in dc, out 7e-7f           stop after an instruction that uses these ports
+ *   del <any of the above>, clear, step, cont
+ *
+ * Addresses and values are hex. Reads include instruction fetches.
+ */
+
+public final class Breakpoints {
+  static final int RD = 0, WR = 1, IN = 2, OUT = 3;
+  static final String[] KINDS = { "rd", "wr", "in", "out" };
+
+  // condition registers and comparisons
+  static final String[] REGS = { "a", "b", "c", "d", "e", "h", "l", "f", "bc", "de", "hl", "ix", "iy", "sp", "r" };
+  static final String[] OPS = { "==", "!=", "<=", ">=", "<", ">" };
+
+  final boolean[] pcs = new boolean[0x10000];
+  final int[][][] conditions = new int[0x10000][][];   // {reg, op, value} clauses, all must hold
+  final boolean[][] watches = { new boolean[0x10000], new boolean[0x10000], new boolean[0x100], new boolean[0x100] };
+
+  volatile int pcCount;
+  final int[] watchCount = new int[4];
+  volatile int version;                 // bumped by every change, see EZ80.setBreakpoints
+
+  boolean suspendOnHit = true;          // false: just count the hits (headless benchmarks)
+  volatile boolean stepping;
+  String hit;                           // why the current instruction must stop, or null
+  long hits;
+  private boolean suspended;
+
+  /* public synchronized String command(String s)
+   *   Runs one debugger command and returns a line describing what it did.
+   */
+  public synchronized String command(String s) {
+    String[] w = s.trim().toLowerCase().split("\\s+", 2);
+    boolean del = w[0].equals("del");
+    if(del) {
+      if(w.length < 2) return "del what?";
+      w = w[1].split("\\s+", 2);
+    }
+    try {
+      if(w[0].equals("clear")) { clear(); return "All breakpoints cleared"; }
+      if(w[0].equals("cont")) { resume(false); return "Running"; }
+      if(w[0].equals("step")) { resume(true); return "Stepping"; }
+      if(w.length < 2) return "Unknown command: " + s;
+
+      if(w[0].equals("bp")) {
+        String[] parts = w[1].split("\\s+if\\s+", 2);
+        int addr = parse(parts[0]) & 0xFFFF;
+        if(del) { setPC(addr, false, null); return "Removed breakpoint at $" + hex(addr); }
+        setPC(addr, true, (parts.length > 1) ? parseCondition(parts[1]) : null);
+        return "Breakpoint at $" + hex(addr) + ((parts.length > 1) ? " if " + parts[1] : "");
+      }
+      for(int kind = 0; kind < 4; kind++) {
+        if(!w[0].equals(KINDS[kind])) continue;
+        String[] range = w[1].split("-");
+        int first = parse(range[0]), last = (range.length > 1) ? parse(range[1]) : first;
+        int mask = watches[kind].length - 1;
+        for(int a = first; a <= last; a++) setWatch(kind, a & mask, !del);
+        return (del ? "Removed " : "") + KINDS[kind] + " watchpoint at $" + hex(first) + ((last != first) ? "-$" + hex(last) : "");
+      }
+    }
+    catch(IllegalArgumentException e) {
+      return "Bad command: " + s + " (" + e.getMessage() + ")";
+    }
+    return "Unknown command: " + s;
+  }
+
+  public synchronized void setPC(int addr, boolean on, int[][] condition) {
+    if(pcs[addr] != on) pcCount += on ? 1 : -1;
+    pcs[addr] = on;
+    conditions[addr] = on ? condition : null;
+    version++;
+  }
+
+  public synchronized void setWatch(int kind, int addr, boolean on) {
+    if(watches[kind][addr] != on) watchCount[kind] += on ? 1 : -1;
+    watches[kind][addr] = on;
+    version++;
+  }
+
+  public synchronized void clear() {
+    java.util.Arrays.fill(pcs, false);
+    java.util.Arrays.fill(conditions, null);
+    for(int kind = 0; kind < 4; kind++) {
+      java.util.Arrays.fill(watches[kind], false);
+      watchCount[kind] = 0;
+    }
+    pcCount = 0;
+    version++;
+    resume(false);
+  }
+
+  public boolean armed() {
+    return pcCount + watchCount[RD] + watchCount[WR] + watchCount[IN] + watchCount[OUT] > 0 || stepping;
+  }
+
+  // True if the breakpoint at the current pc has no condition or its condition holds.
+  final boolean check(EZ80 z80) {
+    int pc = z80.pc & 0xFFFF;
+    int[][] condition = conditions[pc];
+    if(condition != null) {
+      for(int i=0; i < condition.length; i++) {
+        int v = register(z80, condition[i][0]), x = condition[i][2];
+        boolean ok;
+        switch(condition[i][1]) {
+          case 0:  ok = v == x; break;
+          case 1:  ok = v != x; break;
+          case 2:  ok = v <= x; break;
+          case 3:  ok = v >= x; break;
+          case 4:  ok = v < x; break;
+          default: ok = v > x;
+        }
+        if(!ok) return false;
+      }
+    }
+    hit = "breakpoint at $" + hex(pc);
+    return true;
+  }
+
+  final void watched(int kind, int addr) {
+    if(hit == null) hit = KINDS[kind] + " $" + hex(addr);
+  }
+
+  /* final void suspend(EZ80 z80)
+   *   Called by the emulation thread, between instructions, when something was
+   *   hit. Blocks until the debugger resumes (cont or step) when suspendOnHit,
+   *   or until the thread is interrupted (see MainThread.stopEmulation); an
+   *   interrupted thread is not suspended again.
+   */
+  final void suspend(EZ80 z80) {
+    hits++;
+    String why = (hit != null) ? hit : "step";
+    hit = null;
+    if(!suspendOnHit || Thread.currentThread().isInterrupted()) return;
+
+    System.out.println("DEBUGGER: Stopped by " + why + ", PC=$" + hex(z80.pc & 0xFFFF));
+    z80.updateDebugger();
+    synchronized(this) {
+      suspended = true;
+      stepping = false;
+      while(suspended) {
+        try { wait(); }
+        catch(InterruptedException e) {
+          suspended = false;
+          Thread.currentThread().interrupt(); // keep the flag, so later hits do not block either
+        }
+      }
+    }
+  }
+
+  public synchronized void resume(boolean step) {
+    stepping = step;
+    suspended = false;
+    version++;
+    notifyAll();
+  }
+
+  public synchronized boolean isSuspended() {
+    return suspended;
+  }
+
+  // Registers may be left unmasked between instructions (see EZ80.saveState).
+  static int register(EZ80 z80, int reg) {
+    switch(reg) {
+      case 0:  return z80.a & 0xFF;
+      case 1:  return z80.b & 0xFF;
+      case 2:  return z80.c & 0xFF;
+      case 3:  return z80.d & 0xFF;
+      case 4:  return z80.e & 0xFF;
+      case 5:  return z80.h & 0xFF;
+      case 6:  return z80.l & 0xFF;
+      case 7:  return z80.flagreg & 0xFF;
+      case 8:  return ((z80.b & 0xFF) << 8) | (z80.c & 0xFF);
+      case 9:  return ((z80.d & 0xFF) << 8) | (z80.e & 0xFF);
+      case 10: return ((z80.h & 0xFF) << 8) | (z80.l & 0xFF);
+      case 11: return z80.ix & 0xFFFF;
+      case 12: return z80.iy & 0xFFFF;
+      case 13: return z80.sp & 0xFFFF;
+      default: return z80.r & 0xFF;
+    }
+  }
+
+  // "a==3 && hl!=c000" -> {{0, 0, 3}, {10, 1, 0xC000}}
+  static int[][] parseCondition(String s) {
+    String[] clauses = s.split("&&");
+    int[][] condition = new int[clauses.length][];
+    for(int i=0; i < clauses.length; i++) {
+      String clause = clauses[i].replaceAll("\\s", "");
+      int op = 0;
+      while(op < OPS.length && clause.indexOf(OPS[op]) < 0) op++;
+      if(op == OPS.length) throw new IllegalArgumentException("no comparison in " + clause);
+      int at = clause.indexOf(OPS[op]);
+      int reg = java.util.Arrays.asList(REGS).indexOf(clause.substring(0, at));
+      if(reg < 0) throw new IllegalArgumentException("unknown register " + clause.substring(0, at));
+      condition[i] = new int[] { reg, op, parse(clause.substring(at + OPS[op].length())) };
+    }
+    return condition;
+  }
+
+  static int parse(String s) {
+    s = s.trim();
+    if(s.startsWith("$")) s = s.substring(1);
+    else if(s.startsWith("0x")) s = s.substring(2);
+    return Integer.parseInt(s, 16);   // NumberFormatException is an IllegalArgumentException
+  }
+
+  static String hex(int v) {
+    return Integer.toHexString(v).toUpperCase();
+  }
+
+  /*
+   * Memory seen by the CPU while memory watchpoints are armed: checks every
+   * access, then hands it to the real MemoryManager.
+   */
+  static final class WatchedMemory extends MemoryManager {
+    final MemoryManager memory;
+    final Breakpoints bp;
+
+    WatchedMemory(MemoryManager memory, Breakpoints bp) {
+      this.memory = memory;
+      this.bp = bp;
+    }
+
+    // Declared as returning a MemoryManager so that the bytecode verifier does not
+    // load this class along with EZ80: while no subclass of MemoryManager is loaded
+    // the JIT calls the plain one directly. Returns last if it already wraps
+    // the same memory for bp.
+    static MemoryManager wrap(MemoryManager memory, Breakpoints bp, MemoryManager last) {
+      if(last instanceof WatchedMemory && ((WatchedMemory)last).memory == memory && ((WatchedMemory)last).bp == bp) return last;
+      return new WatchedMemory(memory, bp);
+    }
+
+    public int readbyte(int addr) {
+      if(bp.watches[RD][addr & 0xFFFF]) bp.watched(RD, addr & 0xFFFF);
+      return memory.readbyte(addr);
+    }
+
+    public int readsigned(int addr) {
+      if(bp.watches[RD][addr & 0xFFFF]) bp.watched(RD, addr & 0xFFFF);
+      return memory.readsigned(addr);
+    }
+
+    public void writebyte(int addr, int value) {
+      if(bp.watches[WR][addr & 0xFFFF]) bp.watched(WR, addr & 0xFFFF);
+      memory.writebyte(addr, value);
+    }
+
+    public int romOffset(int addr) {
+      return memory.romOffset(addr);
+    }
+
+    public void dumpMemory() {
+      memory.dumpMemory();
+    }
+  }
+
+  // Ports seen by the CPU while port watchpoints are armed.
+  static final class WatchedPorts extends Ports {
+    final Ports ports;
+    final Breakpoints bp;
+
+    WatchedPorts(Ports ports, Breakpoints bp) {
+      super(ports.vdp, ports.psg, ports.joy);
+      this.z80 = ports.z80;
+      this.ports = ports;
+      this.bp = bp;
+    }
+
+    static Ports wrap(Ports ports, Breakpoints bp, Ports last) {
+      if(last instanceof WatchedPorts && ((WatchedPorts)last).ports == ports && ((WatchedPorts)last).bp == bp) return last;
+      return new WatchedPorts(ports, bp);
+    }
+
+    public int read(int port) {
+      if(bp.watches[IN][port & 0xFF]) bp.watched(IN, port & 0xFF);
+      return ports.read(port);
+    }
+
+    public void write(int port, int value) {
+      if(bp.watches[OUT][port & 0xFF]) bp.watched(OUT, port & 0xFF);
+      ports.write(port, value);
+    }
+  }
+}
@@ -22,50 +22,54 @@ public final class Cartridge {
 
     fileName = openDialog.getFile();
     
-    if(fileName != null && fileName.trim().length() != 0) {
-      fullPath = openDialog.getDirectory() + fileName;
+    if(fileName != null && fileName.trim().length() != 0)
+      load(openDialog.getDirectory() + fileName);
+    else
+      romLoaded = false;
 
-      try {
-        System.out.println("CARTRIDGE: Loading rom " + fileName.toUpperCase() + "... ");
-        romFile = new File(fullPath);
-        fileStream = new FileInputStream(romFile);
-        romSize = (int)romFile.length();
-        if(romSize % 4096 != 0) { // Header detected. Skip it.
-          System.out.print("CARTRIDGE: ROM Header Found. Skipping it... ");
-          romSize -= 512;
-          romData = new byte[romSize];
-          numPages = romSize / 16384;
-          try { fileStream.skip(512); System.out.println("OK"); }
-          catch(IOException e) { System.err.println("CRITICAL I/O ERROR: file error"); System.exit(1); }
-        }
-        else {                     
-          System.out.println("CARTRIDGE: ROM Header not found");
-          romData = new byte[romSize];
-          numPages = romSize / 16384;
-        }
+    openDialog = null;
+  }
+
+  public void load(String path) {
+    romFile = new File(path);
+    fileName = romFile.getName();
+    fullPath = path;
 
-        try {
-          fileStream.read(romData);
-          romLoaded = true;
-          System.out.println("CARTRIDGE: Successfully loaded " + Integer.toString(romSize) + " bytes.");
-        }
-        catch(IOException e) { System.err.println("CRITICAL I/O ERROR: File cannot be loaded!"); System.exit(1); }
+    try {
+      System.out.println("CARTRIDGE: Loading rom " + fileName.toUpperCase() + "... ");
+      fileStream = new FileInputStream(romFile);
+      romSize = (int)romFile.length();
+      if(romSize % 4096 != 0) { // Header detected. Skip it.
+        System.out.print("CARTRIDGE: ROM Header Found. Skipping it... ");
+        romSize -= 512;
+        romData = new byte[romSize];
+        numPages = romSize / 16384;
+        try { fileStream.skip(512); System.out.println("OK"); }
+        catch(IOException e) { System.err.println("CRITICAL I/O ERROR: file error"); System.exit(1); }
       }
-      catch(FileNotFoundException e) {
-        fileName = null;
-        fullPath = null;
-        romLoaded = false;
-        System.err.println("CARTRIDGE ERROR: File not found.");
+      else {                     
+        System.out.println("CARTRIDGE: ROM Header not found");
+        romData = new byte[romSize];
+        numPages = romSize / 16384;
       }
+
+      try {
+        fileStream.read(romData);
+        romLoaded = true;
+        System.out.println("CARTRIDGE: Successfully loaded " + Integer.toString(romSize) + " bytes.");
+      }
+      catch(IOException e) { System.err.println("CRITICAL I/O ERROR: File cannot be loaded!"); System.exit(1); }
     }
-    else {
+    catch(FileNotFoundException e) {
+      fileName = null;
+      fullPath = null;
       romLoaded = false;
+      System.err.println("CARTRIDGE ERROR: File not found.");
     }
 
     try { fileStream.close(); }
     catch(Exception e) {}
     fileStream = null;
-    openDialog = null;
   }
 
   public String getFileName() {
@@ -80,6 +84,13 @@ public final class Cartridge {
     return romSize;
   }
 
+  // CRC32 of the rom image (without header), identifies the game for movies.
+  public int crc() {
+    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    crc.update(romData, 0, romSize);
+    return (int)crc.getValue();
+  }
+
   public boolean isLoaded() {
     return romLoaded;
   }
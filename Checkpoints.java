@@ -0,0 +1,113 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Regression checkpoints: runs a rom headless (optionally driven by an input
+ * movie) and at chosen frames hashes the rendered framebuffer and the 64k of
+ * MemoryManager.memory with Hash64. Each checkpoint is one log line:
+ *
+ *   frame <n> fb <16 hex digits> ram <16 hex digits>
+ *
+ * Given a golden log, the run is compared as it goes and stops at the first
+ * checkpoint that differs, exiting with status 1.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar Checkpoints <rom> <frames>
+ *          [-every N | -at f1,f2,...] [-movie file] [-log file] [-golden file]
+ */
+
+public final class Checkpoints {
+  Headless emu;
+  Hash64 hash;
+
+  public Checkpoints(Headless emu) {
+    this.emu = emu;
+    hash = new Hash64();
+  }
+
+  public long frameHash() {
+    int[] pixels = emu.screen.pixels;
+    return hash.reset(0).update(pixels, 0, pixels.length).digest();
+  }
+
+  public long ramHash() {
+    byte[] memory = emu.memory.memory;
+    return hash.reset(0).update(memory, 0, memory.length).digest();
+  }
+
+  public String line(int frame) {
+    return "frame " + frame + " fb " + hex(frameHash()) + " ram " + hex(ramHash());
+  }
+
+  static String hex(long v) {
+    String s = Long.toHexString(v);
+    return "0000000000000000".substring(s.length()) + s;
+  }
+
+  // Checkpoint lines of a log, by frame. Other lines are ignored.
+  static Map<Integer, String> readLog(String path) throws IOException {
+    Map<Integer, String> log = new HashMap<Integer, String>();
+    BufferedReader in = new BufferedReader(new FileReader(path));
+    try {
+      String s;
+      while((s = in.readLine()) != null) {
+        s = s.trim();
+        if(!s.startsWith("frame ")) continue;
+        log.put(Integer.valueOf(s.split(" ")[1]), s);
+      }
+    }
+    finally { in.close(); }
+    return log;
+  }
+
+  public static void main(String args[]) throws IOException {
+    if(args.length < 2) {
+      System.out.println("Usage: Checkpoints <rom> <frames> [-every N | -at f1,f2,...] [-movie file] [-log file] [-golden file]");
+      System.exit(1);
+    }
+    int frames = Integer.parseInt(args[1]);
+    int every = 60;
+    Set<Integer> at = null;
+    String movie = null, logPath = null, goldenPath = null;
+    for(int i=2; i + 1 < args.length; i += 2) {
+      if(args[i].equals("-every")) every = Integer.parseInt(args[i+1]);
+      else if(args[i].equals("-at")) {
+        at = new HashSet<Integer>();
+        String[] list = args[i+1].split(",");
+        for(int j=0; j < list.length; j++) at.add(Integer.valueOf(list[j].trim()));
+      }
+      else if(args[i].equals("-movie")) movie = args[i+1];
+      else if(args[i].equals("-log")) logPath = args[i+1];
+      else if(args[i].equals("-golden")) goldenPath = args[i+1];
+    }
+
+    Cartridge cart = new Cartridge();
+    cart.load(args[0]);
+    if(!cart.isLoaded()) System.exit(1);
+
+    Headless emu = new Headless(cart);
+    if(movie != null) emu.machine.movie = Movie.load(movie, cart.crc());
+    Checkpoints checkpoints = new Checkpoints(emu);
+    Map<Integer, String> golden = (goldenPath != null) ? readLog(goldenPath) : null;
+    PrintStream log = (logPath != null) ? new PrintStream(new FileOutputStream(logPath)) : System.out;
+
+    int checked = 0;
+    for(int frame = 1; frame <= frames; frame++) {
+      emu.machine.emulateFrame(true);
+      if(at != null ? !at.contains(Integer.valueOf(frame)) : (frame % every != 0)) continue;
+
+      String line = checkpoints.line(frame);
+      log.println(line);
+      checked++;
+      if(golden != null && !line.equals(golden.get(Integer.valueOf(frame)))) {
+        System.out.println("CHECKPOINTS: DIVERGED at frame " + frame);
+        System.out.println("  expected: " + golden.get(Integer.valueOf(frame)));
+        System.out.println("  got:      " + line);
+        log.flush();
+        System.exit(1);
+      }
+    }
+    log.flush();
+    if(log != System.out) log.close();
+    System.out.println("CHECKPOINTS: " + checked + " checkpoints" + (golden != null ? " match " + goldenPath : ""));
+  }
+}
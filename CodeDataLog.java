@@ -0,0 +1,156 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/*
+ * Code/data log: one byte per rom byte telling how the game used it, keyed by
+ * the physical rom offset the Sega mapper had paged in at the time:
+ *
+ *   CODE     first byte of an executed instruction
+ *   OPERAND  other bytes read while executing an instruction (operands and
+ *            the second byte of prefixed opcodes)
+ *   DATA     read as data
+ *
+ * A byte may carry several flags; 0 means untouched. Logs only ever gain
+ * flags, so merging is a bitwise OR and the order of merges does not matter.
+ * The file is the raw bitmap, as long as the rom, normally <rom>.cdl.
+ * mergeInto() locks the file, so many runs can merge into the same log at once.
+ *
+ * Usage: java -cp Remaster.jar CodeDataLog <out.cdl> [in.cdl ...]
+ *   merges the inputs into out.cdl and prints its coverage.
+ */
+
+public final class CodeDataLog {
+  static final int CODE = 1, OPERAND = 2, DATA = 4;
+
+  final byte[] flags;                   // padded to whole 16k banks, like the rom in MemoryManager
+  final int romSize;
+
+  public CodeDataLog(int romSize) {
+    this.romSize = romSize;
+    flags = new byte[Math.max(0x4000, (romSize + 0x3FFF) & ~0x3FFF)];
+  }
+
+  public void merge(CodeDataLog log) {
+    if(log.romSize != romSize) throw new IllegalArgumentException("code/data logs of different roms");
+    for(int i=0; i < romSize; i++) flags[i] |= log.flags[i];
+  }
+
+  /* public void mergeInto(String path)
+   *   ORs this log into the file (created if missing) and reads the result
+   *   back, holding a lock on the file meanwhile.
+   */
+  public void mergeInto(String path) throws IOException {
+    synchronized(CodeDataLog.class) {   // file locks are per process: keep threads in turn too
+      RandomAccessFile file = new RandomAccessFile(path, "rw");
+      try {
+        FileChannel channel = file.getChannel();
+        FileLock lock = channel.lock();
+        try {
+          long size = channel.size();
+          if(size != 0 && size != romSize) throw new IOException(path + " is the log of another rom");
+          ByteBuffer buf = ByteBuffer.allocate(romSize);
+          while(buf.hasRemaining() && channel.read(buf, buf.position()) > 0);
+          byte[] stored = buf.array();
+          for(int i=0; i < romSize; i++) stored[i] = flags[i] |= stored[i];
+          buf.clear();
+          while(buf.hasRemaining()) channel.write(buf, buf.position());
+        }
+        finally { lock.release(); }
+      }
+      finally { file.close(); }
+    }
+  }
+
+  public static CodeDataLog load(String path) throws IOException {
+    File file = new File(path);
+    CodeDataLog log = new CodeDataLog((int)file.length());
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try { in.readFully(log.flags, 0, log.romSize); }
+    finally { in.close(); }
+    return log;
+  }
+
+  // One line per kind: bytes flagged and the share of the rom.
+  public String coverage() {
+    int code = 0, operand = 0, data = 0, untouched = 0;
+    for(int i=0; i < romSize; i++) {
+      int f = flags[i];
+      if((f & CODE) != 0) code++;
+      if((f & OPERAND) != 0) operand++;
+      if((f & DATA) != 0) data++;
+      if(f == 0) untouched++;
+    }
+    return "code " + percent(code) + ", operands " + percent(operand) + ", data " + percent(data) + ", untouched " + percent(untouched)
+           + " of " + romSize + " bytes";
+  }
+
+  private String percent(int n) {
+    return n + " (" + String.format("%.1f%%", 100.0 * n / Math.max(romSize, 1)) + ")";
+  }
+
+  public static void main(String args[]) throws IOException {
+    if(args.length < 1) {
+      System.out.println("Usage: CodeDataLog <out.cdl> [in.cdl ...]");
+      System.exit(1);
+    }
+    for(int i=1; i < args.length; i++) load(args[i]).mergeInto(args[0]);
+    System.out.println("CDL: " + args[0] + ": " + load(args[0]).coverage());
+  }
+
+  /*
+   * Memory seen by the CPU while logging. A rom read at the pc is the opcode,
+   * reads just after it are operands (the pc only moves once an instruction
+   * is done), and anything else is data.
+   */
+  static final class LoggingMemory extends MemoryManager {
+    final MemoryManager memory;
+    final byte[] flags;
+    final EZ80 z80;
+
+    LoggingMemory(MemoryManager memory, CodeDataLog log, EZ80 z80) {
+      this.memory = memory;
+      this.flags = log.flags;
+      this.z80 = z80;
+    }
+
+    // Typed as MemoryManager so that EZ80 can be verified without loading this
+    // class (see Breakpoints.WatchedMemory.wrap). Returns last if it already
+    // logs the same memory into log.
+    static MemoryManager wrap(MemoryManager memory, CodeDataLog log, EZ80 z80, MemoryManager last) {
+      if(last instanceof LoggingMemory && ((LoggingMemory)last).memory == memory
+         && ((LoggingMemory)last).flags == log.flags && ((LoggingMemory)last).z80 == z80) return last;
+      return new LoggingMemory(memory, log, z80);
+    }
+
+    private void mark(int addr) {
+      int offset = memory.romOffset(addr);
+      if(offset < 0) return;
+      int distance = (addr - z80.pc) & 0xFFFF;
+      flags[offset] |= (distance == 0) ? CODE : (distance < 4) ? OPERAND : DATA;
+    }
+
+    public int readbyte(int addr) {
+      mark(addr);
+      return memory.readbyte(addr);
+    }
+
+    public int readsigned(int addr) {
+      mark(addr);
+      return memory.readsigned(addr);
+    }
+
+    public void writebyte(int addr, int value) {
+      memory.writebyte(addr, value);
+    }
+
+    public int romOffset(int addr) {
+      return memory.romOffset(addr);
+    }
+
+    public void dumpMemory() {
+      memory.dumpMemory();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+/*
+ * Immutable copy of the registers shown by the Debugger window, taken by the
+ * emulation thread between frames. The window reads the newest one from the
+ * EDT, so neither side ever touches the other's data.
+ */
+
+public final class DebugSnapshot {
+  /* CPU */
+  final int a, b, c, d, e, h, l, a_, b_, c_, d_, e_, h_, l_;
+  final int ix, iy, f, r, sp, pc, opcode, im, counter;
+  final boolean iff1, iff2, eiLast, irq;
+
+  /* VDP */
+  final int[] vdpRegs;
+  final int vdpStatus, vdpAddress, vdpLatch, vdpScanline;
+  final boolean vdpWaitAddress;
+
+  /* PSG */
+  final int tone0, tone1, tone2, noise, vol0, vol1, vol2, vol3;
+
+  public DebugSnapshot(EZ80 z80, int opcode, VDP vdp, PSG psg) {
+    a = z80.a; b = z80.b; c = z80.c; d = z80.d; e = z80.e; h = z80.h; l = z80.l;
+    a_ = z80.a_; b_ = z80.b_; c_ = z80.c_; d_ = z80.d_; e_ = z80.e_; h_ = z80.h_; l_ = z80.l_;
+    ix = z80.ix; iy = z80.iy; f = z80.flagreg; r = z80.r; sp = z80.sp; pc = z80.pc;
+    this.opcode = opcode; im = z80.im; counter = z80.counter;
+    iff1 = z80.iff1; iff2 = z80.iff2; eiLast = z80.EIDI_Last; irq = z80.irq;
+
+    vdpRegs = new int[11];
+    System.arraycopy(vdp.regs, 0, vdpRegs, 0, 11);
+    vdpStatus = vdp.status; vdpAddress = vdp.address; vdpLatch = vdp.latch; vdpScanline = vdp.scanline;
+    vdpWaitAddress = vdp.WaitAddress;
+
+    tone0 = psg.regs0; tone1 = psg.regs1; tone2 = psg.regs2; noise = psg.regs3;
+    vol0 = psg.vol0; vol1 = psg.vol1; vol2 = psg.vol2; vol3 = psg.vol3;
+  }
+}
@@ -94,10 +94,35 @@ public final class Debugger extends JFrame
   public Label s_VDPLatch = new Label("Latch: $");
   public Label s_VDPScanline = new Label("Scanline: $");
 
-  JPanel panel_CPU, p0, p1, p2, panel_VDP;
+  /* PSG */
+  public Label PSGTone0 = new Label();
+  public Label PSGTone1 = new Label();
+  public Label PSGTone2 = new Label();
+  public Label PSGNoise = new Label();
+  public Label PSGVolume = new Label();
+
+  public Label s_PSGTone0 = new Label("Tone 0: $");
+  public Label s_PSGTone1 = new Label("Tone 1: $");
+  public Label s_PSGTone2 = new Label("Tone 2: $");
+  public Label s_PSGNoise = new Label("Noise: $");
+  public Label s_PSGVolume = new Label("Volumes: ");
+
+  JPanel panel_CPU, p0, p1, p2, panel_VDP, panel_PSG;
   
   boolean enabled = false;
 
+  // Breakpoint commands (see Breakpoints) and the answer to the last one.
+  Breakpoints breakpoints = new Breakpoints();
+  volatile Trace trace;                 // handed to the CPU between frames (see EZ80.setTrace)
+  TextField command = new TextField();
+  Label commandResult = new Label("bp, rd, wr, in, out, del, clear, step, cont, trace");
+  JPanel panel_Break;
+
+  // Newest registers published by the emulation thread, and the ones on screen.
+  private volatile DebugSnapshot latest;
+  private DebugSnapshot shown;
+  private javax.swing.Timer refresh;
+
   public Debugger()
   {
     super("SMS Debugger - " + Remaster.APPNAME);
@@ -113,12 +138,27 @@ public final class Debugger extends JFrame
     p2 = new JPanel();
     panel_VDP = new JPanel();
     panel_CPU = new JPanel();
+    panel_PSG = new JPanel();
 
     p0.setLayout(new GridLayout(1,2));
     p0.add(p1);
     p0.add(p2);
     panel_CPU.setLayout(new BorderLayout());
     panel_CPU.add(p0, BorderLayout.NORTH);
+    panel_CPU.add(panel_PSG, BorderLayout.SOUTH);
+    panel_Break = new JPanel();
+    panel_Break.setLayout(new GridLayout(2,1));
+    panel_Break.add(command);
+    panel_Break.add(commandResult);
+    panel_CPU.add(panel_Break, BorderLayout.CENTER);
+    command.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        String s = command.getText().trim();
+        commandResult.setText(s.startsWith("trace") ? traceCommand(s) : breakpoints.command(s));
+        command.setText("");
+      }
+    } );
+    panel_PSG.setLayout(new GridLayout(0,2));
     p1.setLayout(new GridLayout(0,2));
     p2.setLayout(new GridLayout(0,2));
     panel_VDP.setLayout(new GridLayout(0,2));
@@ -204,16 +244,114 @@ public final class Debugger extends JFrame
     panel_VDP.add(s_VDPScanline);
     panel_VDP.add(VDPScanline);
 
+    panel_PSG.add(s_PSGTone0);
+    panel_PSG.add(PSGTone0);
+    panel_PSG.add(s_PSGTone1);
+    panel_PSG.add(PSGTone1);
+    panel_PSG.add(s_PSGTone2);
+    panel_PSG.add(PSGTone2);
+    panel_PSG.add(s_PSGNoise);
+    panel_PSG.add(PSGNoise);
+    panel_PSG.add(s_PSGVolume);
+    panel_PSG.add(PSGVolume);
+
     Border borda = BorderFactory.createEtchedBorder();
     panel_CPU.setBorder(BorderFactory.createTitledBorder(borda, "CPU:"));
     panel_VDP.setBorder(BorderFactory.createTitledBorder(borda, "VDP:"));
+    panel_PSG.setBorder(BorderFactory.createTitledBorder(borda, "PSG:"));
+    panel_Break.setBorder(BorderFactory.createTitledBorder(borda, "Breakpoints:"));
 
     getContentPane().add(panel_CPU);
     getContentPane().add(panel_VDP);
+
+    // the labels are only touched from the EDT, 10 times a second at most
+    refresh = new javax.swing.Timer(100, new ActionListener() { public void actionPerformed(ActionEvent e) { refresh(); } } );
+    refresh.start();
+  }
+
+  /* public void publish(DebugSnapshot s)
+   *   Called by the emulation thread. Only the newest snapshot is kept, so
+   *   snapshots published faster than the window refreshes are simply dropped.
+   */
+  public void publish(DebugSnapshot s) {
+    latest = s;
+  }
+
+  // Shows the newest snapshot, updating only the labels whose value changed.
+  private void refresh() {
+    DebugSnapshot s = latest, o = shown;
+    if(!enabled || s == null || s == o) return;
+    boolean all = (o == null);
+
+    if(all || s.a != o.a) regA.setText(hex(s.a));
+    if(all || s.b != o.b) regB.setText(hex(s.b));
+    if(all || s.c != o.c) regC.setText(hex(s.c));
+    if(all || s.d != o.d) regD.setText(hex(s.d));
+    if(all || s.e != o.e) regE.setText(hex(s.e));
+    if(all || s.h != o.h || s.l != o.l) regHL.setText(hex(s.h) + hex(s.l));
+    if(all || s.a_ != o.a_) regA_.setText(hex(s.a_));
+    if(all || s.b_ != o.b_) regB_.setText(hex(s.b_));
+    if(all || s.c_ != o.c_) regC_.setText(hex(s.c_));
+    if(all || s.d_ != o.d_) regD_.setText(hex(s.d_));
+    if(all || s.e_ != o.e_) regE_.setText(hex(s.e_));
+    if(all || s.h_ != o.h_ || s.l_ != o.l_) regHL_.setText(hex(s.h_) + hex(s.l_));
+    if(all || s.ix != o.ix) regIX.setText(hex(s.ix));
+    if(all || s.iy != o.iy) regIY.setText(hex(s.iy));
+    if(all || s.f != o.f) regF.setText(hex(s.f));
+    if(all || s.r != o.r) regR.setText(hex(s.r));
+    if(all || s.sp != o.sp) regSP.setText(hex(s.sp));
+    if(all || s.opcode != o.opcode) regOpcode.setText(hex(s.opcode));
+    if(all || s.pc != o.pc) regPC.setText(hex(s.pc));
+    if(all || s.iff1 != o.iff1) flagIFF1.setText(s.iff1 ? "TRUE" : "FALSE");
+    if(all || s.iff2 != o.iff2) flagIFF2.setText(s.iff2 ? "TRUE" : "FALSE");
+    if(all || s.eiLast != o.eiLast) EILast.setText(s.eiLast ? "true" : "false");
+    if(all || s.im != o.im) flagIM.setText(hex(s.im));
+    if(all || s.irq != o.irq) flagIRQ.setText(s.irq ? "TRUE" : "FALSE");
+    if(all || s.counter != o.counter) counter.setText(Integer.toString(s.counter));
+
+    Label[] vdpRegs = { VDPReg00, VDPReg01, VDPReg02, VDPReg03, VDPReg04, VDPReg05, VDPReg06, VDPReg07, VDPReg08, VDPReg09, VDPReg10 };
+    for(int i=0; i < vdpRegs.length; i++)
+      if(all || s.vdpRegs[i] != o.vdpRegs[i]) vdpRegs[i].setText(hex(s.vdpRegs[i]));
+    if(all || s.vdpStatus != o.vdpStatus) VDPStatus.setText(Integer.toBinaryString(s.vdpStatus) + "b");
+    if(all || s.vdpAddress != o.vdpAddress) VDPAddress.setText(hex(s.vdpAddress));
+    if(all || s.vdpWaitAddress != o.vdpWaitAddress) VDPWaitAddress.setText(s.vdpWaitAddress ? "TRUE" : "FALSE");
+    if(all || s.vdpLatch != o.vdpLatch) VDPLatch.setText(hex(s.vdpLatch));
+    if(all || s.vdpScanline != o.vdpScanline) VDPScanline.setText(Integer.toString(s.vdpScanline));
+
+    if(all || s.tone0 != o.tone0) PSGTone0.setText(hex(s.tone0));
+    if(all || s.tone1 != o.tone1) PSGTone1.setText(hex(s.tone1));
+    if(all || s.tone2 != o.tone2) PSGTone2.setText(hex(s.tone2));
+    if(all || s.noise != o.noise) PSGNoise.setText(hex(s.noise) + (((s.noise & 4) != 0) ? " (white)" : " (periodic)"));
+    if(all || s.vol0 != o.vol0 || s.vol1 != o.vol1 || s.vol2 != o.vol2 || s.vol3 != o.vol3)
+      PSGVolume.setText(s.vol0 + " " + s.vol1 + " " + s.vol2 + " " + s.vol3);
+
+    shown = s;
+  }
+
+  // "trace <file> [records]" starts tracing into a new file, "trace off" stops.
+  private String traceCommand(String s) {
+    String[] w = s.split("\\s+");
+    if(w.length < 2 || w[1].equals("off")) {
+      trace = null;
+      return "Trace off";
+    }
+    try {
+      int records = (w.length > 2) ? Integer.parseInt(w[2]) : 1 << 20;
+      trace = new Trace(w[1], records);
+      return "Tracing the last " + records + " instructions into " + w[1];
+    }
+    catch(Exception e) {
+      return "Trace error: " + e.getMessage();
+    }
+  }
+
+  private static String hex(int v) {
+    return Integer.toHexString(v).toUpperCase();
   }
 
   public void toggleEnabled() {
 	enabled = !enabled;
+	shown = null; // show everything again when reopened
 	setVisible(enabled);
   }
   
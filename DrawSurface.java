@@ -53,6 +53,33 @@ public final class DrawSurface extends Panel {
 	        		case 119:  // F8 key - toggle crappy sound synchronization on/off
 	        				parent.psg.crappy_sync = !parent.psg.crappy_sync;
 	        			break;
+	        		case 114:  // F3 key - start/stop recording a movie (restarts the game)
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.RECORD_MOVIE;
+	        			break;
+	        		case 115:  // F4 key - start/stop replaying the movie (restarts the game)
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.PLAY_MOVIE;
+	        			break;
+	        		case 116:  // F5 key - save state
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.SAVE_STATE;
+	        			break;
+	        		case 117:  // F6 key - toggle rewind history on/off
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.TOGGLE_REWIND;
+	        			break;
+	        		case 8:    // BACKSPACE (hold): rewind
+	        			if(parent.mainloop != null) parent.mainloop.rewinding = true;
+	        			break;
+	        		case 118:  // F7 key - load state
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.LOAD_STATE;
+	        			break;
+	        		case 122:  // F11 key - start/stop the profiler (writes <rom>.profile when stopped)
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.TOGGLE_PROFILER;
+	        			break;
+	        		case 123:  // F12 key - cycle run-ahead through 0-3 frames
+	        			if(parent.mainloop != null) parent.mainloop.stateRequest = MainThread.NEXT_RUNAHEAD;
+	        			break;
+	        		case 120:  // F9 key - toggle fast-forward (turbo) on/off
+	        			if(parent.mainloop != null) parent.mainloop.turbo = !parent.mainloop.turbo;
+	        			break;
 	        		default:
 	        			//if(parent.z80 != null) parent.z80.msg.println("Key pressed = " + e.getKeyCode());
 	        	}
@@ -81,6 +108,9 @@ public final class DrawSurface extends Panel {
 	        		case 27:   // Key ESC - Soft reset
 	        			parent.joy.byte2 |= Joystick.RESET;
 	        			break;
+	        		case 8:    // BACKSPACE: stop rewinding
+	        			if(parent.mainloop != null) parent.mainloop.rewinding = false;
+	        			break;
 	        	}
 	        }
 	    } ); // End of KeyListener definition
@@ -29,10 +29,24 @@ public final class EZ80 {
   public boolean EIDI_Last;                         // "True" if the last executed instruction was DI or EI.
   public boolean halt;                              // for HALT instruction
   public int counter;                               // Cycle Counter
+  public long idleCycles;                           // Cycles fast-forwarded while halted or spinning (profiling)
+  public long cycles;                               // Cycles given to execute() since reset
 
   private MemoryManager memory;
   private VDP vdp;
   private Ports ports;
+  private MemoryManager plainMemory;                // memory and ports without watchpoints
+  private Ports plainPorts;
+  private Breakpoints breakpoints;                  // null unless some breakpoint is armed
+  private Breakpoints lastBreakpoints;              // as last given to setBreakpoints, armed or not
+  private int breakpointsVersion;
+  private MemoryManager watchedMemory, loggedMemory; // the wrappers last built, reused while they fit
+  private Ports watchedPorts;
+  private Trace trace;                              // null unless tracing
+  private Profiler profiler;                        // null unless profiling
+  private CodeDataLog codeDataLog;                  // null unless logging rom coverage
+  private boolean watchMemory;
+  private boolean checked;                          // any of the above: use executeChecked()
   private Debugger debugger;
   private int opcode = 0;
   
@@ -44,13 +58,23 @@ public final class EZ80 {
     this.debugger = debugger;
     this.vdp = vdp;
     this.ports = ports;
+    ports.z80 = this;
+    plainMemory = memory;
+    plainPorts = ports;
     
     generateParityTable();
     generateDAATable();
     reset();
     
     opcodes = new Mnemonic();
-    msg = new Messages();
+    if(!java.awt.GraphicsEnvironment.isHeadless()) msg = new Messages();
+  }
+
+  // Shows emulation problems in the messages window, or on the console when headless.
+  private void message(String s) {
+    if(msg == null) { System.out.println("EZ80: " + s); return; }
+    if(!msg.isVisible()) msg.setVisible(true);
+    msg.println(s);
   }
 
   public void reset() {
@@ -64,12 +88,33 @@ public final class EZ80 {
     pc = 0;
 
     counter = 0;
+    idleCycles = 0;
+    cycles = 0;
     EIDI_Last = false;
     halt = false;
     iff1 = false;
     iff2 = false;
   }
 
+  // Registers are stored as whole ints: some instructions leave them unmasked
+  // until the next one uses them, and a restored machine must see the same values.
+  public void saveState(java.nio.ByteBuffer buf) {
+    buf.putInt(a).putInt(b).putInt(c).putInt(d).putInt(e).putInt(h).putInt(l).putInt(flagreg);
+    buf.putInt(a_).putInt(f_).putInt(b_).putInt(c_).putInt(d_).putInt(e_).putInt(h_).putInt(l_);
+    buf.putInt(ix).putInt(iy).putInt(sp).putInt(pc).putInt(r).putInt(im);
+    buf.put((byte)((iff1 ? 1 : 0) | (iff2 ? 2 : 0) | (irq ? 4 : 0) | (halt ? 8 : 0) | (EIDI_Last ? 16 : 0)));
+    buf.putInt(counter).putLong(cycles).putLong(idleCycles);
+  }
+
+  public void loadState(java.nio.ByteBuffer buf) {
+    a = buf.getInt(); b = buf.getInt(); c = buf.getInt(); d = buf.getInt(); e = buf.getInt(); h = buf.getInt(); l = buf.getInt(); flagreg = buf.getInt();
+    a_ = buf.getInt(); f_ = buf.getInt(); b_ = buf.getInt(); c_ = buf.getInt(); d_ = buf.getInt(); e_ = buf.getInt(); h_ = buf.getInt(); l_ = buf.getInt();
+    ix = buf.getInt(); iy = buf.getInt(); sp = buf.getInt(); pc = buf.getInt(); r = buf.getInt(); im = buf.getInt();
+    int flags = buf.get();
+    iff1 = (flags & 1) != 0; iff2 = (flags & 2) != 0; irq = (flags & 4) != 0; halt = (flags & 8) != 0; EIDI_Last = (flags & 16) != 0;
+    counter = buf.getInt(); cycles = buf.getLong(); idleCycles = buf.getLong();
+  }
+
   public final void push(int value) {
   	sp--;
     memory.writebyte(sp, value >> 8);
@@ -86,6 +131,11 @@ public final class EZ80 {
     return val;
   }
   
+  // Cycles executed since reset, counting the instruction in progress as not yet executed.
+  public final long cycle() {
+    return cycles - counter;
+  }
+
   public final void setIRQ() {
   	irq = true;
   }
@@ -119,6 +169,8 @@ public final class EZ80 {
 
   public final void execute(int iperiod) {
     counter += iperiod;
+    cycles += iperiod;
+    if(checked) { executeChecked(); return; }
 
     while(counter > 0) {
       if(irq) interrupt(); // Execute interrupt
@@ -164,19 +216,186 @@ public final class EZ80 {
       System.out.println(op);
       // --------------- END OF DEBUGGING PART --------------
 */
-      exec_opcode(memory.readbyte(pc));
+      int op = memory.readbyte(pc);
+      if((op == 0x76 || op == 0x18 || op == 0xC3 || op == 0xDB) && !(irq && iff1) && skipIdle(op)) continue;
+      exec_opcode(op);
     }
     //updateDebugger();
   }
 
+  // execute() with breakpoints armed, tracing or profiling: stops before an
+  // instruction at a breakpoint and after one that touched a watched address
+  // or port, traces every instruction and counts the cycles it took.
+  private void executeChecked() {
+    Breakpoints bp = breakpoints;
+    Trace tr = trace;
+    Profiler pr = profiler;
+    while(counter > 0) {
+      int start = counter;
+      if(irq) {
+        int from = pc;
+        interrupt();
+        if(pr != null && pc != from) pr.call(this);
+      }
+      if(bp != null && (bp.stepping || (bp.pcs[pc & 0xFFFF] && bp.check(this)))) bp.suspend(this);
+      if(tr != null) tr.record(this, plainMemory); // plain memory: the operand peeks are not watched reads
+
+      int key = (pr != null) ? pr.key(pc) : 0, stack = sp;
+      int op = memory.readbyte(pc);
+      // only the one instruction idle loops: the V counter polling loop runs three
+      // real instructions in skipIdle, which would get past the checks above
+      if((op == 0x76 || op == 0x18 || op == 0xC3) && !(irq && iff1) && (bp == null || !bp.stepping) && skipIdle(op)) {
+        if(pr != null) pr.count(key, start - counter);
+        continue;
+      }
+      exec_opcode(op);
+      if(pr != null) pr.instruction(this, key, start - counter, op, stack);
+      if(bp != null && bp.hit != null) bp.suspend(this);
+    }
+  }
+
+  /* public void setBreakpoints(Breakpoints bp)
+   *   Called between frames. Switches to the checked execute loop while bp has
+   *   anything armed, and to the watching memory and ports while it has
+   *   watchpoints of their kind; otherwise the CPU runs exactly as without a
+   *   debugger. Cheap when nothing changed since the last call.
+   */
+  public void setBreakpoints(Breakpoints bp) {
+    if(bp == lastBreakpoints && (bp == null || bp.version == breakpointsVersion)) return;
+    lastBreakpoints = bp;
+    breakpointsVersion = (bp != null) ? bp.version : 0;
+    if(bp != null && !bp.armed()) bp = null;
+    breakpoints = bp;
+    checked = breakpoints != null || trace != null || profiler != null;
+
+    watchMemory = bp != null && (bp.watchCount[Breakpoints.RD] + bp.watchCount[Breakpoints.WR]) > 0;
+    boolean watchPorts = bp != null && (bp.watchCount[Breakpoints.IN] + bp.watchCount[Breakpoints.OUT]) > 0;
+    mapMemory();
+    ports = watchPorts ? (watchedPorts = Breakpoints.WatchedPorts.wrap(plainPorts, bp, watchedPorts)) : plainPorts;
+  }
+
+  /* public void setCodeDataLog(CodeDataLog cdl)
+   *   Starts marking the rom bytes the CPU executes and reads in cdl, or stops
+   *   with null. Only the memory the CPU sees changes; execute() does not.
+   *   The wrapper is kept, so stopping and resuming the same log allocates
+   *   nothing (see MainThread.runAhead).
+   */
+  public void setCodeDataLog(CodeDataLog cdl) {
+    codeDataLog = cdl;
+    mapMemory();
+  }
+
+  public CodeDataLog codeDataLog() {
+    return codeDataLog;
+  }
+
+  // The memory the CPU sees: the plain one, wrapped by the code/data log and
+  // the memory watchpoints when they are in use.
+  private void mapMemory() {
+    MemoryManager m = plainMemory;
+    if(codeDataLog != null) m = loggedMemory = CodeDataLog.LoggingMemory.wrap(m, codeDataLog, this, loggedMemory);
+    if(watchMemory) m = watchedMemory = Breakpoints.WatchedMemory.wrap(m, breakpoints, watchedMemory);
+    memory = m;
+  }
+
+  /* public void setTrace(Trace t)
+   *   Called between frames. Starts tracing every instruction into t, or stops
+   *   with null; a trace that is replaced is closed.
+   */
+  public void setTrace(Trace t) {
+    if(t == trace) return;
+    if(trace != null) {
+      try { trace.close(); }
+      catch(java.io.IOException e) { message("Error closing the trace: " + e.getMessage()); }
+    }
+    trace = t;
+    checked = breakpoints != null || trace != null || profiler != null;
+  }
+
+  /* public Trace detachTrace()
+   *   Stops tracing without closing the trace, and returns it so that setTrace
+   *   can carry on with it later (see MainThread.runAhead).
+   */
+  public Trace detachTrace() {
+    Trace t = trace;
+    trace = null;
+    checked = breakpoints != null || profiler != null;
+    return t;
+  }
+
+  /* public void setProfiler(Profiler p)
+   *   Called between frames. Starts counting cycles into p, or stops with null.
+   */
+  public void setProfiler(Profiler p) {
+    profiler = p;
+    checked = breakpoints != null || trace != null || profiler != null;
+  }
+
+  public Profiler profiler() {
+    return profiler;
+  }
+
+  /* private boolean skipIdle(int op)
+   *   Fast-forwards through HALT and through loops that only an interrupt or a new
+   *   scanline can break: JR $, JP $ and IN A,($7E); CP n; JR NZ,-6 polling the V counter
+   *   (which does not change inside one execute() call). Every skipped iteration leaves
+   *   the registers as they were, so only the cycle counter and refresh register move,
+   *   and an EI just before the loop stops holding off interrupts.
+   *   Returns false if the instruction at pc must be executed normally. The polling
+   *   loop executes its first iteration here, so executeChecked() never asks for it.
+   */
+  private boolean skipIdle(int op) {
+    int period, length, loops;
+    if(halt) { period = 4; length = 1; }
+    // the loop is recognised through the plain memory and ports: these peeks are
+    // not reads made by the game, so watchpoints and the code/data log skip them
+    else if(op == 0x18 && plainMemory.readbyte(pc+1) == 0xFE) { period = 12; length = 1; }
+    else if(op == 0xC3 && ((plainMemory.readbyte(pc+2) << 8) | plainMemory.readbyte(pc+1)) == pc) { period = 10; length = 1; }
+    else if(op == 0xDB && counter > 30 && (plainMemory.readbyte(pc+1) & 0xFE) == 0x7E && plainMemory.readbyte(pc+2) == 0xFE
+            && plainMemory.readbyte(pc+4) == 0x20 && plainMemory.readbyte(pc+5) == 0xFA
+            && plainPorts.read(plainMemory.readbyte(pc+1)) != plainMemory.readbyte(pc+3)) {
+      // run one real iteration so that A and the flags hold what the loop leaves in them
+      exec_opcode(op);
+      exec_opcode(memory.readbyte(pc));
+      exec_opcode(memory.readbyte(pc));
+      period = 30; length = 3;
+    }
+    else return false;
+
+    if(length == 1) loops = (counter + period - 1) / period;
+    else loops = (counter - 1) / period; // leave the last, possibly partial, iteration to the interpreter
+
+    counter -= loops * period;
+    idleCycles += loops * period;
+    r = (r & 0x80) | ((r + loops * length) & 0x7F);
+    if(loops > 0) EIDI_Last = false; // as exec_opcode would
+    return true;
+  }
+
   public final void exec_opcode(int opcode) {
-    int aux, addr, f;
-    f = flagreg;
     int temp = r;
     temp++;
     r = (r & 0x80) | (temp & 0x7F);     // increment refresh register preserving bit 7.
     EIDI_Last = false;
 
+    // The opcode table is split in blocks of 32 so that each method stays under
+    // HotSpot's 8000 byte huge method limit and can be JIT compiled.
+    switch(opcode >> 5) {
+      case 0: exec_opcode_00(opcode); break;
+      case 1: exec_opcode_20(opcode); break;
+      case 2: exec_opcode_40(opcode); break;
+      case 3: exec_opcode_60(opcode); break;
+      case 4: exec_opcode_80(opcode); break;
+      case 5: exec_opcode_A0(opcode); break;
+      case 6: exec_opcode_C0(opcode); break;
+      default: exec_opcode_E0(opcode);
+    }
+  }
+
+  private void exec_opcode_00(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
     switch(opcode) {
       case 0x00:           // NOP - 4 cycles.
         counter -= 4;
@@ -621,7 +840,16 @@ public final class EZ80 {
         counter -= 4;
         pc++;
         break;
+    }
+
+    flagreg = f;
+  }
 
+  private void exec_opcode_20(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x20:           // JR NZ, PC+d - 12/7 cycles
         if((f & FLAG_ZERO) == 0) {
           pc += memory.readsigned(pc+1);
@@ -1056,7 +1284,16 @@ public final class EZ80 {
         counter -= 4;
         pc++;
         break;
+    }
 
+    flagreg = f;
+  }
+
+  private void exec_opcode_40(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x40:           // LD B, B - 4 cycles
         counter -= 4;
         pc++;
@@ -1244,7 +1481,16 @@ public final class EZ80 {
         counter -= 4;
         pc++;
         break;
+    }
 
+    flagreg = f;
+  }
+
+  private void exec_opcode_60(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x60:           // LD H, B - 4 cycles
         h = b;
         counter -= 4;
@@ -1432,7 +1678,16 @@ public final class EZ80 {
         counter -= 4;
         pc++;
         break;
+    }
 
+    flagreg = f;
+  }
+
+  private void exec_opcode_80(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x80:           // ADD A, B - 4 cycles
       	if((a & 0xF) + (b & 0xF) > 0xF) f |= FLAG_HCARRY;
       	else f &= ~FLAG_HCARRY;
@@ -2215,7 +2470,16 @@ public final class EZ80 {
       	counter -= 4;
       	pc++;
       	break;
-      	
+    }
+
+    flagreg = f;
+  }
+
+  private void exec_opcode_A0(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0xA0:           // AND B - 4 cycles
         a &= b;
         a &= 0xFF;
@@ -2821,7 +3085,16 @@ public final class EZ80 {
       	counter -= 4;
       	pc++;
       	break;
+    }
 
+    flagreg = f;
+  }
+
+  private void exec_opcode_C0(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0xC0:           // RET NZ - 11/5 cycles
         if((f & FLAG_ZERO) == 0) {
             pc = pop();
@@ -3157,7 +3430,16 @@ public final class EZ80 {
         pc = 0x18;
         counter -= 11;
         break;
+    }
+
+    flagreg = f;
+  }
 
+  private void exec_opcode_E0(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0xE0:           // RET PO - 11/5 cycles
         if((f & FLAG_PV) == 0) {
           pc = pop();
@@ -3472,23 +3754,34 @@ public final class EZ80 {
         break;
 
       default:             // Uninmplemented opcode
-      	if(!msg.isVisible()) msg.setVisible(true);
-        msg.println("PC = $" + Integer.toHexString(pc) + "  0x" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
+      	message("PC = $" + Integer.toHexString(pc) + "  0x" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
         //memory.dumpMemory();
         //vdp.dumpMemory();
         pc++;
     }
-    
+
     flagreg = f;
   }
 
-  public final void exec_CB_opcode(int opcode)
-  {
+  public final void exec_CB_opcode(int opcode) {
+    // Split in blocks of 32 opcodes for the same reason as exec_opcode.
+    switch(opcode >> 5) {
+      case 0: exec_CB_opcode_00(opcode); break;
+      case 1: exec_CB_opcode_20(opcode); break;
+      case 2: exec_CB_opcode_40(opcode); break;
+      case 3: exec_CB_opcode_60(opcode); break;
+      case 4: exec_CB_opcode_80(opcode); break;
+      case 5: exec_CB_opcode_A0(opcode); break;
+      case 6: exec_CB_opcode_C0(opcode); break;
+      default: exec_CB_opcode_E0(opcode);
+    }
+  }
+
+  private void exec_CB_opcode_00(int opcode) {
     int aux, addr, f;
     f = flagreg;
 
-    switch(opcode)
-    {
+    switch(opcode) {
       case 0x00:           // RLC B - 8 cycles
       	b = b << 1;
       	if((b & 0x100) != 0) {
@@ -4253,7 +4546,16 @@ public final class EZ80 {
       	counter -= 8;
       	pc++;
       	break;
-      
+    }
+
+    flagreg = f;
+  }
+
+  private void exec_CB_opcode_20(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x20:           // SLA B - 8 cycles
       	if((b & 0x80) != 0) f |= FLAG_CARRY;
       	else f &= ~FLAG_CARRY;
@@ -4893,7 +5195,16 @@ public final class EZ80 {
         counter -= 8;
         pc++;
       	break;
-      
+    }
+
+    flagreg = f;
+  }
+
+  private void exec_CB_opcode_40(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x40:           // BIT 0, B - 8 cycles
        	if((b & 0x1) == 0) f |= FLAG_ZERO | FLAG_PV;
       	else f &= ~(FLAG_ZERO | FLAG_PV);
@@ -5190,7 +5501,16 @@ public final class EZ80 {
       	counter -= 8;
       	pc++;
       	break;
+    }
 
+    flagreg = f;
+  }
+
+  private void exec_CB_opcode_60(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x60:           // BIT 4, B - 8 cycles
       	if((b & 0x10) == 0) f |= FLAG_ZERO | FLAG_PV;
       	else f &= ~(FLAG_ZERO | FLAG_PV);
@@ -5506,7 +5826,16 @@ public final class EZ80 {
       	counter -= 8;
       	pc++;
       	break;
-      
+    }
+
+    flagreg = f;
+  }
+
+  private void exec_CB_opcode_80(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0x80:           // RES 0, B - 8 cycles
         b &= ~0x01;
         counter -= 8;
@@ -5710,7 +6039,16 @@ public final class EZ80 {
         counter -= 8;
         pc++;
         break;
+    }
+
+    flagreg = f;
+  }
+
+  private void exec_CB_opcode_A0(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
 
+    switch(opcode) {
       case 0xA0:           // RES 4, B - 8 cycles
         b &= ~0x10;
         counter -= 8;
@@ -5914,7 +6252,16 @@ public final class EZ80 {
         counter -= 8;
         pc++;
         break;
+    }
 
+    flagreg = f;
+  }
+
+  private void exec_CB_opcode_C0(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0xC0:           // SET 0, B - 8 cycles
         b |= 0x01;
         counter -= 8;
@@ -6118,7 +6465,16 @@ public final class EZ80 {
         counter -= 8;
         pc++;
         break;
+    }
+
+    flagreg = f;
+  }
 
+  private void exec_CB_opcode_E0(int opcode) {
+    int aux, addr, f;
+    f = flagreg;
+
+    switch(opcode) {
       case 0xE0:           // SET 4, B - 8 cycles
         b |= 0x10;
         counter -= 8;
@@ -6324,13 +6680,13 @@ public final class EZ80 {
         break;
 
       default:             // Uninmplemented opcode
-      	if(!msg.isVisible()) msg.setVisible(true);
-        msg.println("PC = $" + Integer.toHexString(pc) + "  0xCB" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
+      	message("PC = $" + Integer.toHexString(pc) + "  0xCB" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
         //memory.dumpMemory();
         //vdp.dumpMemory();
         //System.exit(0);
         pc++;
     }
+
     flagreg = f;
   }
 
@@ -7012,8 +7368,7 @@ public final class EZ80 {
       	break;
 
       default:             // Uninmplemented opcode
-      	if(!msg.isVisible()) msg.setVisible(true);
-        msg.println("PC = $" + Integer.toHexString(pc) + "  0xDD" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
+      	message("PC = $" + Integer.toHexString(pc) + "  0xDD" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
         //memory.dumpMemory();
         //vdp.dumpMemory();
         //System.exit(0);
@@ -7844,8 +8199,7 @@ public final class EZ80 {
       	break;
         
       default:             // Uninmplemented opcode
-      	if(!msg.isVisible()) msg.setVisible(true);
-        msg.println("PC = $" + Integer.toHexString(pc) + "  0xED" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
+      	message("PC = $" + Integer.toHexString(pc) + "  0xED" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
         //memory.dumpMemory();
         //vdp.dumpMemory();
         //System.exit(0);
@@ -8531,8 +8885,7 @@ public final class EZ80 {
       	break;
 
       default:             // Uninmplemented opcode
-      	if(!msg.isVisible()) msg.setVisible(true);
-        msg.println("PC = $" + Integer.toHexString(pc) + "  0xFD" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
+      	message("PC = $" + Integer.toHexString(pc) + "  0xFD" + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
         //memory.dumpMemory();
         //vdp.dumpMemory();
         //System.exit(0);
@@ -8988,7 +9341,7 @@ public final class EZ80 {
         	break;
 
       default:             // Uninmplemented opcode
-        msg.println("PC = $" + Integer.toHexString(pc - 3) + "  0xDDCB nn " + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
+        message("PC = $" + Integer.toHexString(pc - 3) + "  0xDDCB nn " + Integer.toHexString(opcode).toUpperCase() + ": Unknown opcode");
         //memory.dumpMemory();
         //vdp.dumpMemory();
         //System.exit(0);
@@ -9453,51 +9806,13 @@ public final class EZ80 {
     flagreg = f;
   }
 
+  /* public void updateDebugger()
+   *   Hands a copy of the registers to the debugger window, which shows it from
+   *   its own thread (see Debugger.publish).
+   */
   public void updateDebugger()
   {
-    debugger.regA.setText(Integer.toHexString(a).toUpperCase());
-    debugger.regB.setText(Integer.toHexString(b).toUpperCase());
-    debugger.regC.setText(Integer.toHexString(c).toUpperCase());
-    debugger.regD.setText(Integer.toHexString(d).toUpperCase());
-    debugger.regE.setText(Integer.toHexString(e).toUpperCase());
-    debugger.regHL.setText(Integer.toHexString(h).toUpperCase() + Integer.toHexString(l).toUpperCase());
-    debugger.regA_.setText(Integer.toHexString(a_).toUpperCase());
-    debugger.regB_.setText(Integer.toHexString(b_).toUpperCase());
-    debugger.regC_.setText(Integer.toHexString(c_).toUpperCase());
-    debugger.regD_.setText(Integer.toHexString(d_).toUpperCase());
-    debugger.regE_.setText(Integer.toHexString(e_).toUpperCase());
-    debugger.regHL_.setText(Integer.toHexString(h_).toUpperCase() + Integer.toHexString(l_).toUpperCase());
-    debugger.regIX.setText(Integer.toHexString(ix).toUpperCase());
-    debugger.regIY.setText(Integer.toHexString(iy).toUpperCase());
-    debugger.regF.setText(Integer.toHexString(flagreg).toUpperCase());
-    debugger.regR.setText(Integer.toHexString(r).toUpperCase());
-    debugger.regSP.setText(Integer.toHexString(sp).toUpperCase());
-    debugger.regOpcode.setText(Integer.toHexString(opcode).toUpperCase());
-    debugger.regPC.setText(Integer.toHexString(pc).toUpperCase());
-    debugger.flagIFF1.setText(Boolean.toString(iff1).toUpperCase());
-    debugger.flagIFF2.setText(Boolean.toString(iff2).toUpperCase());
-    debugger.EILast.setText(Boolean.toString(EIDI_Last));
-    debugger.flagIM.setText(Integer.toHexString(im).toUpperCase());
-    debugger.flagIRQ.setText(Boolean.toString(irq).toUpperCase());
-    debugger.counter.setText(Integer.toString(counter));
-    
-    debugger.VDPReg00.setText(Integer.toHexString(vdp.regs[0]).toUpperCase());
-    debugger.VDPReg01.setText(Integer.toHexString(vdp.regs[1]).toUpperCase());
-    debugger.VDPReg02.setText(Integer.toHexString(vdp.regs[2]).toUpperCase());
-    debugger.VDPReg03.setText(Integer.toHexString(vdp.regs[3]).toUpperCase());
-    debugger.VDPReg04.setText(Integer.toHexString(vdp.regs[4]).toUpperCase());
-    debugger.VDPReg05.setText(Integer.toHexString(vdp.regs[5]).toUpperCase());
-    debugger.VDPReg06.setText(Integer.toHexString(vdp.regs[6]).toUpperCase());
-    debugger.VDPReg07.setText(Integer.toHexString(vdp.regs[7]).toUpperCase());
-    debugger.VDPReg08.setText(Integer.toHexString(vdp.regs[8]).toUpperCase());
-    debugger.VDPReg09.setText(Integer.toHexString(vdp.regs[9]).toUpperCase());
-    debugger.VDPReg10.setText(Integer.toHexString(vdp.regs[10]).toUpperCase());
-    debugger.VDPStatus.setText(Integer.toBinaryString(vdp.status) + "b");
-    debugger.VDPAddress.setText(Integer.toHexString(vdp.address).toUpperCase());
-    debugger.VDPWaitAddress.setText(Boolean.toString(vdp.WaitAddress).toUpperCase());
-    debugger.VDPLatch.setText(Integer.toHexString(vdp.latch).toUpperCase());
-    debugger.VDPScanline.setText(Integer.toString(vdp.scanline).toUpperCase());
-    
+    if(debugger != null) debugger.publish(new DebugSnapshot(this, opcode, vdp, ports.psg));
   }
 
   // DAA table generator, borrowed from JavaGear (thanks Chris White)
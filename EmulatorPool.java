@@ -0,0 +1,84 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Runs many roms at once, each on its own fully isolated machine (see Headless),
+ * spread over a fixed pool of worker threads. Machines run unthrottled and each
+ * job returns a hash of the final framebuffer and work RAM plus the number of
+ * cycles executed.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar EmulatorPool <frames> <threads> <rom> [rom...]
+ */
+
+public final class EmulatorPool {
+  private ExecutorService executor;
+
+  public static final class Result {
+    public String rom;
+    public int frames;
+    public long frameHash, ramHash, cycles;
+
+    public String toString() {
+      return rom + " frames=" + frames + " cycles=" + cycles + " frame=" + Long.toHexString(frameHash) + " ram=" + Long.toHexString(ramHash);
+    }
+  }
+
+  public EmulatorPool(int threads) {
+    executor = Executors.newFixedThreadPool(threads);
+  }
+
+  public Future<Result> submit(final String rom, final int frames) {
+    return executor.submit(new Callable<Result>() { public Result call() { return run(rom, frames); } } );
+  }
+
+  public List<Result> runAll(List<String> roms, int frames) throws InterruptedException, ExecutionException {
+    List<Future<Result>> jobs = new ArrayList<Future<Result>>();
+    for(int i=0; i < roms.size(); i++)
+      jobs.add(submit(roms.get(i), frames));
+
+    List<Result> results = new ArrayList<Result>();
+    for(int i=0; i < jobs.size(); i++)
+      results.add(jobs.get(i).get());
+    return results;
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+
+  static Result run(String rom, int frames) {
+    Cartridge cart = new Cartridge();
+    cart.load(rom);
+    if(!cart.isLoaded()) throw new IllegalArgumentException("cannot load " + rom);
+
+    Headless emu = new Headless(cart);
+    emu.runFrames(frames);
+
+    Result result = new Result();
+    result.rom = rom;
+    result.frames = frames;
+    result.cycles = emu.z80.cycles;
+    result.frameHash = Hash64.hash(emu.screen.pixels, 0, emu.screen.pixels.length);
+    result.ramHash = Hash64.hash(emu.memory.memory, 0xC000, 0x2000);
+    return result;
+  }
+
+  public static void main(String args[]) throws Exception {
+    if(args.length < 3) {
+      System.out.println("Usage: EmulatorPool <frames> <threads> <rom> [rom...]");
+      System.exit(1);
+    }
+    int frames = Integer.parseInt(args[0]);
+    EmulatorPool pool = new EmulatorPool(Integer.parseInt(args[1]));
+
+    long start = System.nanoTime();
+    List<Result> results = pool.runAll(Arrays.asList(args).subList(2, args.length), frames);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    pool.shutdown();
+
+    for(int i=0; i < results.size(); i++)
+      System.out.println(results.get(i));
+    System.out.println("POOL: " + (frames * results.size()) + " frames in " + seconds + " s, "
+                       + (frames * results.size() / seconds) + " frames/sec");
+  }
+}
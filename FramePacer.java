@@ -0,0 +1,82 @@
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Paces the emulation thread to the NTSC frame rate against System.nanoTime.
+ * Frames are scheduled on an absolute timeline, so oversleeping one frame is
+ * paid back on the next instead of drifting. The thread parks until shortly
+ * before the deadline and yields through the last stretch, which keeps the
+ * scheduler's wakeup slack out of the frame time without burning a core.
+ * Also keeps frame time and jitter statistics for reporting.
+ */
+
+public final class FramePacer {
+  static final long SPIN = 500000;        // finish the last 0.5ms by yielding instead of parking
+
+  private long period;                    // nanoseconds per frame
+  private long deadline;                  // when the current frame should be presented
+  private long last;                      // when the previous frame was presented
+
+  public long frames, late, resyncs;
+  private double sum, sumSquares;         // frame intervals, in milliseconds
+  private double worst;
+
+  public FramePacer(double fps) {
+    period = (long)(1e9 / fps);
+    reset();
+  }
+
+  public void reset() {
+    deadline = last = System.nanoTime();
+    frames = late = resyncs = 0;
+    sum = sumSquares = worst = 0;
+  }
+
+  // Restarts the timeline from now, e.g. after fast-forwarding, without touching the statistics.
+  public void resync() {
+    deadline = last = System.nanoTime();
+  }
+
+  /* public final void waitForNextFrame()
+   *   Blocks until the deadline of the next frame. If the host fell more than a
+   *   few frames behind, the timeline restarts from now rather than racing to
+   *   catch up.
+   */
+  public final void waitForNextFrame() {
+    deadline += period;
+    long now = System.nanoTime();
+
+    if(now - deadline > (period << 2)) { deadline = now; resyncs++; }
+    else if(now > deadline) late++;
+    else {
+      long remaining;
+      while((remaining = deadline - now) > SPIN) {
+        LockSupport.parkNanos(remaining - SPIN);
+        now = System.nanoTime();
+      }
+      while(now < deadline) {
+        Thread.yield();
+        now = System.nanoTime();
+      }
+    }
+
+    double ms = (now - last) / 1e6;
+    last = now;
+    frames++;
+    sum += ms;
+    sumSquares += ms * ms;
+    double deviation = Math.abs(ms - period / 1e6);
+    if(deviation > worst) worst = deviation;
+  }
+
+  public String stats() {
+    if(frames == 0) return "no frames";
+    double mean = sum / frames;
+    double jitter = Math.sqrt(Math.max(0, sumSquares / frames - mean * mean));
+    return frames + " frames, mean " + format(mean) + " ms, jitter " + format(jitter) + " ms, worst deviation "
+           + format(worst) + " ms, " + late + " late, " + resyncs + " resyncs";
+  }
+
+  private static String format(double d) {
+    return String.valueOf(Math.round(d * 1000) / 1000.0);
+  }
+}
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+ * Incremental 64-bit hash following xxHash64: four accumulators each take every
+ * fourth 8 byte lane, which keeps the multiplies independent and runs at
+ * several bytes per cycle. int arrays are hashed as their little endian bytes,
+ * so hashing the framebuffer gives the same value as hashing it as bytes.
+ *
+ *   Hash64 h = new Hash64(); h.update(pixels, 0, pixels.length); long v = h.digest();
+ */
+
+public final class Hash64 {
+  static final long P1 = 0x9E3779B185EBCA87L;
+  static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  static final long P3 = 0x165667B19E3779F9L;
+  static final long P4 = 0x85EBCA77C2B2AE63L;
+  static final long P5 = 0x27D4EB2F165667C5L;
+
+  private long seed;
+  private long v1, v2, v3, v4;
+  private long total;                 // bytes hashed so far
+  private byte[] pending;             // start of an incomplete 32 byte stripe
+  private int pendingSize;
+  private ByteBuffer pendingWords;
+
+  public Hash64() {
+    this(0);
+  }
+
+  public Hash64(long seed) {
+    pending = new byte[32];
+    pendingWords = ByteBuffer.wrap(pending).order(ByteOrder.LITTLE_ENDIAN);
+    reset(seed);
+  }
+
+  public Hash64 reset(long seed) {
+    this.seed = seed;
+    v1 = seed + P1 + P2;
+    v2 = seed + P2;
+    v3 = seed;
+    v4 = seed - P1;
+    total = 0;
+    pendingSize = 0;
+    return this;
+  }
+
+  public Hash64 update(byte[] data, int offset, int length) {
+    total += length;
+    int end = offset + length;
+
+    if(pendingSize > 0) {  // complete the pending stripe first
+      int n = Math.min(32 - pendingSize, length);
+      System.arraycopy(data, offset, pending, pendingSize, n);
+      pendingSize += n;
+      offset += n;
+      if(pendingSize < 32) return this;
+      stripe(pendingWords.getLong(0), pendingWords.getLong(8), pendingWords.getLong(16), pendingWords.getLong(24));
+      pendingSize = 0;
+    }
+
+    ByteBuffer words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    for(; offset + 32 <= end; offset += 32)
+      stripe(words.getLong(offset), words.getLong(offset + 8), words.getLong(offset + 16), words.getLong(offset + 24));
+
+    System.arraycopy(data, offset, pending, 0, end - offset);
+    pendingSize = end - offset;
+    return this;
+  }
+
+  public Hash64 update(int[] data, int offset, int length) {
+    int end = offset + length;
+    if(pendingSize == 0) {
+      total += (long)(length & ~7) << 2;
+      for(; offset + 8 <= end; offset += 8)
+        stripe((data[offset] & 0xFFFFFFFFL) | ((long)data[offset + 1] << 32),
+               (data[offset + 2] & 0xFFFFFFFFL) | ((long)data[offset + 3] << 32),
+               (data[offset + 4] & 0xFFFFFFFFL) | ((long)data[offset + 5] << 32),
+               (data[offset + 6] & 0xFFFFFFFFL) | ((long)data[offset + 7] << 32));
+    }
+    if(offset < end) {  // unaligned rest, through the byte path
+      byte[] b = new byte[4];
+      for(; offset < end; offset++) {
+        int v = data[offset];
+        b[0] = (byte)v; b[1] = (byte)(v >> 8); b[2] = (byte)(v >> 16); b[3] = (byte)(v >> 24);
+        update(b, 0, 4);
+      }
+    }
+    return this;
+  }
+
+  public long digest() {
+    long h;
+    if(total >= 32)
+      h = merge(merge(merge(merge(Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18), v1), v2), v3), v4);
+    else
+      h = seed + P5;
+    h += total;
+
+    int i = 0;
+    for(; i + 8 <= pendingSize; i += 8) {
+      h ^= round(0, pendingWords.getLong(i));
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+    }
+    if(i + 4 <= pendingSize) {
+      h ^= (pendingWords.getInt(i) & 0xFFFFFFFFL) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+      i += 4;
+    }
+    for(; i < pendingSize; i++) {
+      h ^= (pending[i] & 0xFF) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+    }
+
+    h ^= h >>> 33;
+    h *= P2;
+    h ^= h >>> 29;
+    h *= P3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  public static long hash(byte[] data, int offset, int length) {
+    return new Hash64().update(data, offset, length).digest();
+  }
+
+  public static long hash(int[] data, int offset, int length) {
+    return new Hash64().update(data, offset, length).digest();
+  }
+
+  private void stripe(long a, long b, long c, long d) {
+    v1 = round(v1, a);
+    v2 = round(v2, b);
+    v3 = round(v3, c);
+    v4 = round(v4, d);
+  }
+
+  private static long round(long acc, long lane) {
+    acc += lane * P2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * P1;
+  }
+
+  private static long merge(long h, long acc) {
+    h ^= round(0, acc);
+    return h * P1 + P4;
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Headless entry point: runs a rom for a number of frames as fast as the host
+ * allows, without opening any window or audio line, and reports the speed.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar Headless <rom> [frames] [movie]
+ *
+ * With a movie (see Movie) the joypads are driven from it, frames 0 meaning the
+ * length of the movie, and a CRC of the final machine state is printed so runs
+ * can be compared across hosts.
+ *
+ * With -Dremaster.trace=<file> every instruction is traced into that file
+ * (see Trace, TraceDecoder); -Dremaster.trace.records sets how many are kept.
+ * With -Dremaster.profile=<file> the run is profiled (see Profiler) and the
+ * collapsed call stacks are written to that file.
+ * With -Dremaster.cdl=<file> the rom bytes executed and read are merged into
+ * that code/data log (see CodeDataLog), which many runs can share.
+ */
+
+public final class Headless {
+  Cartridge cart;
+  Joystick joy;
+  MemoryManager memory;
+  Screen screen;
+  VDP vdp;
+  PSG psg;
+  Ports ports;
+  EZ80 z80;
+  MainThread machine;
+
+  public Headless(Cartridge cart) {
+    this.cart = cart;
+
+    joy = new Joystick();
+    memory = new MemoryManager(cart);
+    screen = new Screen(null, 256, 192); // in-memory framebuffer only
+    vdp = new VDP(screen);
+    psg = new PSG(false);                // no audio line
+    ports = new Ports(vdp, psg, joy);
+    z80 = new EZ80(memory, ports, vdp, null);
+    machine = new MainThread(screen, cart, memory, vdp, psg, ports, joy, z80, null, null, null);
+    machine.SMS_reset();
+  }
+
+  public final void runFrames(int frames) {
+    for(int i=0; i < frames; i++)
+      machine.emulateFrame(true);
+  }
+
+  // CRC32 of the whole machine state (see SaveState).
+  public final long stateCrc() {
+    java.nio.ByteBuffer buf = new SaveState(cart, memory, vdp, psg, z80, joy).save();
+    java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+    crc.update(buf.array(), 0, buf.limit());
+    return crc.getValue();
+  }
+
+  public static void main(String args[]) throws java.io.IOException {
+    if(args.length < 1) {
+      System.out.println("Usage: Headless <rom> [frames] [movie]");
+      System.exit(1);
+    }
+    int frames = (args.length > 1) ? Integer.parseInt(args[1]) : 3600;
+
+    Cartridge cart = new Cartridge();
+    cart.load(args[0]);
+    if(!cart.isLoaded()) System.exit(1);
+
+    Headless emu = new Headless(cart);
+    if(args.length > 2) {
+      emu.machine.movie = Movie.load(args[2], cart.crc());
+      if(frames <= 0) frames = emu.machine.movie.length();
+    }
+
+    String tracePath = System.getProperty("remaster.trace");
+    if(tracePath != null) emu.z80.setTrace(new Trace(tracePath, Integer.getInteger("remaster.trace.records", 1 << 20)));
+    String profilePath = System.getProperty("remaster.profile");
+    if(profilePath != null) emu.z80.setProfiler(new Profiler(emu.memory, cart.getRomSize()));
+
+    long start = System.nanoTime();
+    emu.runFrames(frames);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    emu.z80.setTrace(null); // closes the trace
+    emu.machine.saveCodeDataLog();
+    if(profilePath != null) {
+      emu.z80.profiler().write(profilePath);
+      emu.z80.profiler().report(System.out, 20);
+    }
+
+    System.out.println("HEADLESS: " + frames + " frames in " + seconds + " s, " + (frames / seconds) + " frames/sec ("
+                       + (frames / seconds / 60) + "x speed)");
+    if(emu.machine.movie != null)
+      System.out.println("HEADLESS: movie replayed, state crc " + Long.toHexString(emu.stateCrc()));
+  }
+}
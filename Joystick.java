@@ -1,5 +1,6 @@
 public final class Joystick {
-	public int byte1, byte2;
+	public int byte1, byte2;   // live state of the keys; bits 6-7 of byte2 are the region bits set through port $3F
+	public int in1, in2;       // keys as seen by the game, latched at the start of each frame
 	public static final int JOY1_UP    = 0x01;
 	public static final int JOY1_DOWN  = 0x02;
 	public static final int JOY1_LEFT  = 0x04;
@@ -17,12 +18,33 @@ public final class Joystick {
 	public Joystick() {
 		byte1 = 0xFF;
 		byte2 = 0xFF;
+		latch();
+	}
+	
+	/* public final void latch()
+	 *   Samples the keys for the next frame. Keeping them constant during a frame
+	 *   makes a frame's input a single value that can be recorded and replayed.
+	 */
+	public final void latch() {
+		in1 = byte1;
+		in2 = byte2 & 0x3F;
+	}
+	
+	// The live keys are not machine state, so a restore leaves them alone.
+	public void saveState(java.nio.ByteBuffer buf) {
+		buf.put((byte)in1).put((byte)in2).put((byte)(byte2 & 0xC0));
+	}
+	
+	public void loadState(java.nio.ByteBuffer buf) {
+		in1 = buf.get() & 0xFF;
+		in2 = buf.get() & 0x3F;
+		byte2 = (byte2 & 0x3F) | (buf.get() & 0xC0);
 	}
 	
 	public int port1_read() {
-		return byte1;
+		return in1;
 	}
 	public int port2_read() {
-		return byte2;
+		return in2 | (byte2 & 0xC0);
 	}
 }
@@ -1,3 +1,5 @@
+import java.io.IOException;
+
 public final class MainThread extends Thread {
   Cartridge cart;
   MemoryManager memory;
@@ -6,12 +8,28 @@ public final class MainThread extends Thread {
   EZ80 z80;
   Screen screen;
   PSG psg;
+  Joystick joy;
   
   VRAMViewer vramviewer;
   CRAMViewer cramviewer;
   Debugger debugger;
+  FramePacer pacer;
+  SaveState state;
+  Rewind rewind;           // rewind history, null while rewind is off
+  SaveState ahead;         // state the run-ahead frames are rolled back to
+  volatile int runAhead;   // frames to run ahead of the real machine before presenting (0 = off)
+  long aheadNanos, aheadFrames;
+  boolean speculating;     // running run-ahead frames that will be rolled back
+  Movie movie;             // input movie being recorded or replayed, or null
+  int frame;               // frames since reset
+  String cdlPath;          // code/data log file (-Dremaster.cdl), or null
   
   boolean running;
+  volatile boolean turbo;  // fast-forward: run unthrottled, present at display rate, drop audio
+  volatile boolean rewinding; // stepping back through the rewind history
+  volatile int stateRequest; // one of the requests below, handled between frames
+  static final int SAVE_STATE = 1, LOAD_STATE = 2, TOGGLE_REWIND = 3, NEXT_RUNAHEAD = 4, RECORD_MOVIE = 5, PLAY_MOVIE = 6, TOGGLE_PROFILER = 7;
+  static final int REWIND_BUDGET = 32 << 20; // bytes of history, about a minute at one snapshot per frame
 
   public MainThread(Screen screen, Cartridge cart, MemoryManager memory, VDP vdp, PSG psg, Ports ports, Joystick joy, EZ80 z80, Debugger debugger, VRAMViewer vramviewer, CRAMViewer cramviewer) {
   	this.cart = cart;    
@@ -19,24 +37,36 @@ public final class MainThread extends Thread {
     this.screen = screen;
     this.vdp = vdp;
     this.psg = psg;
+    this.joy = joy;
     this.ports = ports;
     this.z80 = z80;
     this.vramviewer = vramviewer;
     this.cramviewer = cramviewer;
     this.debugger = debugger;
 
+    pacer = new FramePacer(60);
+    state = new SaveState(cart, memory, vdp, psg, z80, joy);
+    ahead = new SaveState(cart, memory, vdp, psg, z80, joy);
+    runAhead = Integer.getInteger("remaster.runahead", 0).intValue();
+    cdlPath = System.getProperty("remaster.cdl");
     running = false;
     
     setPriority(Thread.NORM_PRIORITY);
   }
 
   public void SMS_reset() {
+    frame = 0;
+    if(cdlPath != null) {  // a fresh log for the rom being started
+      saveCodeDataLog();
+      z80.setCodeDataLog(new CodeDataLog(cart.getRomSize()));
+    }
     memory.reset();
     vdp.reset();
     psg.reset();
     z80.reset();
 
     memory.loadFromCartridge();
+    joy.byte2 |= 0xC0; // region bits read back as set until the game writes port $3F
 
     z80.sp = 0xDFF0;   // The SMS bios sets these values at power up.
     z80.flagreg = EZ80.FLAG_ZERO;
@@ -49,15 +79,257 @@ public final class MainThread extends Thread {
 
   public void stopEmulation() {
     running = false;
+    interrupt();  // releases the thread if a breakpoint suspended it (see Breakpoints.suspend)
   }
 
   public final void run() {
     System.out.println("EMULATOR: Starting main thread.");
 
-    int drawframe = 0, drawline = 0;
+    int drawframe = 0;
     running = true;
+    pacer.reset();
 
     while(running) {
+        if(stateRequest != 0) handleStateRequest();
+        if(turbo) { runTurbo(); continue; }
+        if(rewinding && rewind != null && movie == null) { rewindFrame(); continue; }
+        if(movie != null && !movie.isRecording() && frame >= movie.length()) stopMovie();
+        if(screen.status != null) screen.status = null;
+
+        int frames = runAhead;
+        z80.setBreakpoints(debugger.breakpoints);
+        z80.setTrace(debugger.trace);
+        emulateFrame(drawframe == 0); // rendered even with run-ahead: rendering sets the sprite collision flags
+
+        if(debugger.enabled) z80.updateDebugger();
+        if(drawframe == 0 && frames > 0) runAhead(frames); // before the wait, so it does not delay the picture
+            
+        sync(); // rate control and frame pacing
+	    psg.output(z80.cycle());
+	    if(rewind != null) rewind.capture();
+
+	    if(drawframe == 0) present();
+        drawframe = (drawframe + 1) % vdp.frameskip;
+    }
+    Thread.interrupted(); // clears stopEmulation's interrupt, which would close the files saved below
+    System.out.println("EMULATOR: Frame pacing: " + pacer.stats());
+    if(rewind != null) System.out.println("EMULATOR: Rewind: " + rewind.stats());
+    if(aheadFrames > 0) System.out.println("EMULATOR: Run-ahead: " + aheadStats());
+    AudioOutput audio = psg.audio;
+    if(audio != null) System.out.println("EMULATOR: Audio: " + audio.stats());
+    if(movie != null && movie.isRecording()) stopMovie();
+    saveCodeDataLog();
+  }
+
+  // Merges the code/data log into its file, which keeps what earlier sessions logged.
+  public void saveCodeDataLog() {
+    CodeDataLog cdl = z80.codeDataLog();
+    if(cdlPath == null || cdl == null) return;
+    try {
+      cdl.mergeInto(cdlPath);
+      System.out.println("EMULATOR: Code/data log: " + cdl.coverage());
+    }
+    catch(IOException e) {
+      System.out.println("EMULATOR: Code/data log error: " + e.getMessage());
+    }
+  }
+
+  /* private void runTurbo()
+   *   Runs the machine as fast as the host allows until turbo is switched off.
+   *   Only the frames that fall on a display refresh are rendered and presented,
+   *   the sound is dropped, and the emulated speed is shown on the screen. Every
+   *   frame still serves what the main loop does between frames: the state keys,
+   *   rewind, breakpoint and trace changes and the end of a replayed movie.
+   */
+  private void runTurbo() {
+    long period = 1000000000L / 60;
+    long now = System.nanoTime(), lastPresent = now - period, windowStart = now;
+    int frames = 0;
+
+    while(running && turbo) {
+        if(stateRequest != 0) handleStateRequest();
+        if(rewinding && rewind != null && movie == null) {
+            rewindFrame();
+            now = lastPresent = windowStart = System.nanoTime();  // "<<" replaces the speed readout
+            frames = 0;
+            continue;
+        }
+        if(movie != null && !movie.isRecording() && frame >= movie.length()) stopMovie();
+        z80.setBreakpoints(debugger.breakpoints);
+        z80.setTrace(debugger.trace);
+
+        boolean render = (now - lastPresent >= period);
+        emulateFrame(render);
+        psg.output(z80.cycle(), false);
+        if(rewind != null) rewind.capture();
+        frames++;
+
+        if(render) {
+            lastPresent = now;
+            if(debugger.enabled) z80.updateDebugger();
+            present();
+        }
+        now = System.nanoTime();
+
+        if(now - windowStart >= 500000000L) {  // refresh the readout twice a second
+            double speed = frames * 1e9 / (now - windowStart) / 60;
+            screen.status = (Math.round(speed * 10) / 10.0) + "x";
+            windowStart = now;
+            frames = 0;
+        }
+    }
+    screen.status = null;
+    pacer.resync();
+  }
+
+  /* private void runAhead(int frames)
+   *   Renders the frame the given number of frames in the future, with the
+   *   current input, then rolls the machine back so the real timeline only
+   *   advances one frame at a time. The ahead frames keep the input latched
+   *   for the real one.
+   */
+  private void runAhead(int frames) {
+    long start = System.nanoTime();
+    java.nio.ByteBuffer saved = ahead.save();
+    int realFrame = frame;
+    Profiler profiler = z80.profiler();   // only the real frames are profiled
+    z80.setProfiler(null);
+    z80.setBreakpoints(null);             // nor stopped at: the debugger shows the real machine
+    Trace trace = z80.detachTrace();      // nor traced: the trace would show frames that never happened
+    CodeDataLog cdl = z80.codeDataLog();  // nor logged, for the same reason
+    z80.setCodeDataLog(null);
+    speculating = true;
+    for(int i=1; i <= frames; i++) {
+      emulateFrame(i == frames);
+      psg.output(z80.cycle(), false);
+    }
+    speculating = false;
+    frame = realFrame;
+    ahead.load(saved);
+    z80.setProfiler(profiler);
+    z80.setCodeDataLog(cdl);
+    z80.setBreakpoints(debugger.breakpoints);
+    z80.setTrace(trace);
+
+    aheadNanos += System.nanoTime() - start;
+    aheadFrames++;
+  }
+
+  // Average time run-ahead adds to each frame.
+  public String aheadStats() {
+    String s = runAhead + " frames, " + (aheadFrames == 0 ? 0 : aheadNanos / aheadFrames / 1000) + " us/frame overhead over " + aheadFrames + " frames";
+    aheadNanos = aheadFrames = 0;
+    return s;
+  }
+
+  /* private void rewindFrame()
+   *   Goes back to the newest snapshot of the rewind history and shows the frame
+   *   that follows it, at normal speed and without sound.
+   */
+  private void rewindFrame() {
+    screen.status = rewind.stepBack() ? "<<" : "<< (end)";
+    emulateFrame(true);
+    psg.output(z80.cycle(), false);
+    if(psg.crappy_sync) pacer.waitForNextFrame();
+    present();
+  }
+
+  // Saves or loads the machine state next to the rom file, or switches rewind or the profiler on/off.
+  private void handleStateRequest() {
+    String path = cart.getFullPath() + ".state";
+    try {
+      if(stateRequest == RECORD_MOVIE || stateRequest == PLAY_MOVIE) {
+        if(movie != null) stopMovie();
+        else {
+          // movies start from power on
+          Movie m = (stateRequest == RECORD_MOVIE) ? Movie.record(cart.crc()) : Movie.load(cart.getFullPath() + ".movie", cart.crc());
+          SMS_reset();
+          movie = m;
+          System.out.println("EMULATOR: " + (movie.isRecording() ? "Recording" : "Replaying") + " movie");
+        }
+      }
+      else if(stateRequest == TOGGLE_PROFILER) {
+        Profiler profiler = z80.profiler();
+        if(profiler == null) {
+          z80.setProfiler(new Profiler(memory, cart.getRomSize()));
+          System.out.println("EMULATOR: Profiler on");
+        }
+        else {
+          z80.setProfiler(null);
+          profiler.write(cart.getFullPath() + ".profile");
+          profiler.report(System.out, 20);
+          System.out.println("EMULATOR: Profile saved to " + cart.getFullPath() + ".profile");
+        }
+      }
+      else if(stateRequest == NEXT_RUNAHEAD) {
+        if(aheadFrames > 0) System.out.println("EMULATOR: Run-ahead: " + aheadStats());
+        runAhead = (runAhead + 1) % 4;
+        System.out.println("EMULATOR: Run-ahead set to " + runAhead + " frames");
+      }
+      else if(stateRequest == TOGGLE_REWIND) {
+        if(rewind == null) {
+          rewind = new Rewind(new SaveState(cart, memory, vdp, psg, z80, joy), REWIND_BUDGET, 1);
+          System.out.println("EMULATOR: Rewind on");
+        }
+        else {
+          System.out.println("EMULATOR: Rewind off: " + rewind.stats());
+          rewind = null;
+        }
+      }
+      else if(stateRequest == SAVE_STATE) {
+        state.save(path);
+        System.out.println("EMULATOR: State saved to " + path);
+      }
+      else if(movie != null) {  // the movie's input would no longer match the machine
+        System.out.println("EMULATOR: Can't load a state while a movie is " + (movie.isRecording() ? "recording" : "replaying"));
+      }
+      else {
+        state.load(path);
+        System.out.println("EMULATOR: State loaded from " + path);
+        present();
+      }
+    }
+    catch(Exception e) {
+      System.out.println("EMULATOR: Save state error: " + e.getMessage());
+    }
+    stateRequest = 0;
+  }
+
+  // Ends the movie being recorded (saving it next to the rom) or replayed.
+  private void stopMovie() {
+    String path = cart.getFullPath() + ".movie";
+    try {
+      if(movie.isRecording()) {
+        movie.save(path);
+        System.out.println("EMULATOR: Movie of " + movie.length() + " frames saved to " + path);
+      }
+      else System.out.println("EMULATOR: Movie replay finished after " + movie.length() + " frames");
+    }
+    catch(IOException e) {
+      System.out.println("EMULATOR: Movie error: " + e.getMessage());
+    }
+    movie = null;
+  }
+
+  private void present() {
+    if(vramviewer.enabled) vramviewer.update();
+    if(cramviewer.enabled) cramviewer.update();
+
+    if((vdp.regs[1] & 0x40) != 0x40) screen.clearBuffer(); // display disabled
+    screen.drawScreen(0, 0);
+  }
+
+  /* public final void emulateFrame(boolean render)
+   *   Runs the machine until the end of the current frame. Scanlines are only
+   *   rendered to the screen buffer when render is true. Does not touch audio,
+   *   the display or the debugging windows, so it can be used headless.
+   */
+  public final void emulateFrame(boolean render) {
+    if(!speculating) {  // run-ahead frames keep the real frame's input
+      joy.latch();
+      if(movie != null) movie.frame(frame, joy);
+    }
+    while(true) {
         if(vdp.scanline < 192) {
             z80.execute(219);
 
@@ -67,7 +339,7 @@ public final class MainThread extends Thread {
         	    vdp.hintcounter = vdp.regs[10];
             }
 
-            if(drawframe == 0) vdp.renderLine();
+            if(render) vdp.renderLine();
          	z80.execute(9);
         }
         
@@ -90,39 +362,26 @@ public final class MainThread extends Thread {
         if(vdp.scanline++ == 262) {
         	vdp.regs[9] = vdp.vscroll_buf;  // updates V Scroll register
         	vdp.scanline = 0;
-        	
-            if(debugger.enabled) z80.updateDebugger();
-            
-            sync(); // crappy audio synchronization and frame skipping technique
-	        psg.output();
-
-	        if(drawframe == 0) {
-  	          if(vramviewer.enabled) vramviewer.update();
-  	          if(cramviewer.enabled) cramviewer.update();
-
-  	          if((vdp.regs[1] & 0x40) == 0x40) {
-  	          	screen.drawScreen(0, 0);
-  	          }
-  	          else {
-  	          	screen.clearBuffer();
-  	          	screen.drawScreen(0, 0);
-  	          }
-            }
-       	  	drawframe = (drawframe + 1) % vdp.frameskip;
+        	frame++;
+        	return;
         }
     }
   }
   
+  /* public void sync()
+   *   Audio and video are kept together by rate control instead of frame skipping:
+   *   the next frame of sound is resampled up to 0.5% longer or shorter depending
+   *   on how far the audio ring is from its target fill, and the frame itself is
+   *   presented on the 60Hz timeline kept by the pacer.
+   */
   public void sync() {
-	if(!psg.enabled || !psg.crappy_sync) return;
-		
-	int available = psg.line.available();
-	// hold if there's too much data stored in the audio line buffer.
-	if(available == psg.bufsiz) vdp.frameskip++;
-	else {
-		while(available < (psg.bufsiz - (psg.bufferLength << 2))) available = psg.line.available();
-		if(vdp.frameskip > 1) vdp.frameskip--;
+	AudioOutput audio = psg.audio;
+	if(psg.enabled && audio != null) {
+		int target = psg.bufferLength << 2;  // 4 frames waiting to be played
+		double error = (double)(target - audio.buffered()) / target;
+		psg.setRate(1 + 0.005 * Math.max(-1, Math.min(1, error)));
 	}
+	if(psg.crappy_sync) pacer.waitForNextFrame();
   }
   
   public void exit() {
@@ -1,7 +1,8 @@
 import java.util.*;
 import java.io.*; 
+import java.nio.ByteBuffer;
 
-public final class MemoryManager
+public class MemoryManager
 {
   private Cartridge cart;
   private EZ80 z80;
@@ -9,6 +10,17 @@ public final class MemoryManager
   byte[] memory;
   byte[] cartRam;
   
+  // Sega mapper page table: each 1k slot of the Z80 address space points into
+  // the rom, cartridge ram or work ram array, so switching banks only updates
+  // a few references instead of copying 16k of rom into main memory.
+  byte[][] readPages;
+  int[] readOffsets;
+  byte[][] writePages;
+  int[] writeOffsets;
+  private byte[] romData;   // rom image padded to a whole number of 16k pages
+  private int numPages;
+  private byte[] romSink;   // swallows writes to rom areas
+  
   FileOutputStream memdump;
   private boolean hasCartRAM;
 
@@ -17,80 +29,170 @@ public final class MemoryManager
 
     memory = new byte[0x10000];  // 64k memory space
     cartRam = new byte[0x8000];  // 32k cartridge RAM
+    
+    readPages = new byte[64][];
+    readOffsets = new int[64];
+    writePages = new byte[64][];
+    writeOffsets = new int[64];
+    romSink = new byte[0x400];
+    romData = new byte[0x4000];
+    numPages = 1;
+    mapRom(0, 48, 0);
+    mapRam();
+  }
+
+  // For subclasses that hand every access to another MemoryManager: allocates nothing.
+  protected MemoryManager() {
   }
 
   public void reset() {
     System.out.print("MEMORY: Resetting memory... ");
     Arrays.fill(memory, (byte) 0);
     hasCartRAM = false;
+    mapRam();
     System.out.println("OK");
   }
   
   public void writebyte(int addr, int value) {
-  	//addr &= 0xFFFF;
-  	//if(addr < 0x8000) return; // Prevent from writing to rom
-
-    if((addr >= 0xC000) && (addr < 0xFDFC)) // Write to RAM
-        memory[addr] = (byte)(value);
-
-  	else if((addr >= 0xE000) && (addr < 0xFFFC)) // Mirror of RAM at $C000-$DFFF
-    	  memory[(addr - 0x2000)] = (byte)(value);
-
-  	else if(addr == 0xFFFC) { // RAM Select register
-  		if((value & 0x8) != 0)
-  			hasCartRAM = true;
-  		memory[0xFFFC] = (byte)(value);
-  	}
-
-  	else if(addr == 0xFFFD) { // Page 0 ROM bank
-  		System.arraycopy(cart.romData, ((value % cart.numPages) << 14) + 0x400, memory, 0x400, 15360);
-  		memory[0xFFFD] = (byte)(value);
-  	}
-
-  	else if(addr == 0xFFFE) { // Page 1 ROM bank
-  		System.arraycopy(cart.romData, (value % cart.numPages) << 14, memory, 0x4000, 16384);
-  		memory[0xFFFE] = (byte)(value);
-  	}
-
-  	else if(addr == 0xFFFF) { // Page 2 ROM/Cart RAM bank
-  		if(((memory[0xFFFC] & 0x8) == 0)) {// Page 2 mapped as ROM
-  			System.arraycopy(cart.romData, (value % cart.numPages) << 14, memory, 0x8000, 16384);
-  		}
-  		memory[0xFFFF] = (byte)(value);
-  	}
+  	addr &= 0xFFFF;
+  	int slot = addr >> 10;
+  	writePages[slot][writeOffsets[slot] + (addr & 0x3FF)] = (byte)(value);
 
-  	else if((addr >= 0x8000) && (addr < 0xC000) && ((memory[0xFFFC] & 0x8) != 0)) { // Write to Cartridge RAM
- 	  cartRam[(addr - 0x8000) + (((memory[0xFFFC] >> 2) & 1) << 14)] = (byte)(value);
+  	if(addr >= 0xFFFC) { // Mapper registers (also written to RAM above)
+  	  memory[addr] = (byte)(value);
+  	  switch(addr) {
+  	    case 0xFFFC: // RAM Select register
+  	      if((value & 0x8) != 0)
+  	        hasCartRAM = true;
+  	      mapSlot2();
+  	      break;
+  	    case 0xFFFD: // Page 0 ROM bank
+  	      mapRom(1, 16, value);
+  	      break;
+  	    case 0xFFFE: // Page 1 ROM bank
+  	      mapRom(16, 32, value);
+  	      break;
+  	    case 0xFFFF: // Page 2 ROM/Cart RAM bank
+  	      mapSlot2();
+  	      break;
+  	  }
   	}
   }
 
   public int readbyte(int addr) {
   	addr &= 0xFFFF;
-  	if((addr >= 0x8000) && (addr < 0xC000) && ((memory[0xFFFC] & 0x8) != 0)) { // Read from Cartridge ram
-  		return cartRam[(addr - 0x8000) + (((memory[0xFFFC] >> 2) & 1) << 14)] & 0xFF;
-  	}
-  	else if((addr >= 0xE000) && (addr < 0xFFFC)) // Mirror of RAM at $C000-$DFFF
-  		return memory[addr - 0x2000] & 0xFF;
-  	else
-  		return memory[addr] & 0xFF;
+  	int slot = addr >> 10;
+  	return readPages[slot][readOffsets[slot] + (addr & 0x3FF)] & 0xFF;
   }
   
   public int readsigned(int addr) {
-  	if((addr >= 0xE000) && (addr < 0xFFFF)) // Mirror of RAM at $C000-$DFFF
-  		return memory[addr - 0x2000];
-  	else
-  		return memory[addr];
+  	addr &= 0xFFFF;
+  	int slot = addr >> 10;
+  	return readPages[slot][readOffsets[slot] + (addr & 0x3FF)];
   }
 
-  public void loadFromCartridge() { // Load first 32k from rom
+  // Physical rom offset currently mapped at a Z80 address, or -1 if the
+  // address is mapped to work ram or cartridge ram.
+  public int romOffset(int addr) {
+  	addr &= 0xFFFF;
+  	int slot = addr >> 10;
+  	if(readPages[slot] != romData) return -1;
+  	return readOffsets[slot] + (addr & 0x3FF);
+  }
+
+  public void loadFromCartridge() { // Map first 32k from rom
     System.out.print("MEMORY: Reading from cartridge... ");
-    if(cart.getRomSize() > 32768)
-    	System.arraycopy(cart.romData, 0, memory, 0, 32768);
+    int size = cart.getRomSize();
+    if((size & 0x3FFF) != 0 || size == 0) { // pad small or odd sized roms to a whole page
+      romData = new byte[Math.max(0x4000, (size + 0x3FFF) & ~0x3FFF)];
+      System.arraycopy(cart.romData, 0, romData, 0, size);
+    }
     else
-        System.arraycopy(cart.romData, 0, memory, 0, cart.getRomSize());
+      romData = cart.romData;
+    numPages = romData.length >> 14;
+
+    mapRom(0, 16, 0);
+    mapRom(16, 32, 1);
+    mapRom(32, 48, 2);
+    mapRam();
     System.out.println("OK");
   }
   
+  // Points 1k slots [first, last) at the matching part of rom bank "page".
+  private void mapRom(int first, int last, int page) {
+  	int base = (page % numPages) << 14;
+  	for(int slot = first; slot < last; slot++) {
+  	  readPages[slot] = romData;
+  	  readOffsets[slot] = base + ((slot & 0xF) << 10);
+  	  writePages[slot] = romSink;
+  	  writeOffsets[slot] = 0;
+  	}
+  }
+  
+  // Page 2 ($8000-$BFFF) is either a rom bank or one of the two cartridge ram banks.
+  private void mapSlot2() {
+  	int control = memory[0xFFFC];
+  	if((control & 0x8) != 0) {
+  	  int base = ((control >> 2) & 1) << 14;
+  	  for(int slot = 32; slot < 48; slot++) {
+  	  	readPages[slot] = cartRam;
+  	  	writePages[slot] = cartRam;
+  	  	readOffsets[slot] = writeOffsets[slot] = base + ((slot & 0xF) << 10);
+  	  }
+  	}
+  	else
+  	  mapRom(32, 48, memory[0xFFFF] & 0xFF);
+  }
+  
+  // Work RAM at $C000-$DFFF, mirrored at $E000-$FFFF.
+  private void mapRam() {
+  	for(int slot = 48; slot < 64; slot++) {
+  	  readPages[slot] = memory;
+  	  writePages[slot] = memory;
+  	  readOffsets[slot] = writeOffsets[slot] = 0xC000 + ((slot & 0x7) << 10);
+  	}
+  }
+  
+  /* public void saveState(ByteBuffer buf)
+   *   Work ram, cartridge ram and the page table, with each slot stored as the
+   *   array it points into plus its offset.
+   */
+  public void saveState(ByteBuffer buf) {
+    buf.put(memory).put(cartRam).put((byte)(hasCartRAM ? 1 : 0));
+    for(int slot = 0; slot < 64; slot++) {
+      buf.put((byte)pageKind(readPages[slot])).putInt(readOffsets[slot]);
+      buf.put((byte)pageKind(writePages[slot])).putInt(writeOffsets[slot]);
+    }
+  }
+
+  // Must be called with the same cartridge loaded (see loadFromCartridge).
+  public void loadState(ByteBuffer buf) {
+    buf.get(memory).get(cartRam);
+    hasCartRAM = buf.get() != 0;
+    for(int slot = 0; slot < 64; slot++) {
+      readPages[slot] = page(buf.get());
+      readOffsets[slot] = buf.getInt();
+      writePages[slot] = page(buf.get());
+      writeOffsets[slot] = buf.getInt();
+    }
+  }
+
+  private int pageKind(byte[] page) {
+  	if(page == memory) return 0;
+  	if(page == cartRam) return 1;
+  	if(page == romSink) return 2;
+  	return 3;
+  }
+
+  private byte[] page(int kind) {
+  	switch(kind) {
+  	  case 0: return memory;
+  	  case 1: return cartRam;
+  	  case 2: return romSink;
+  	  default: return romData;
+  	}
+  }
+
   public void dumpMemory() {
   	try {
 	  memdump = new FileOutputStream(new File("memdump.bin"));
@@ -0,0 +1,123 @@
+import java.io.*;
+
+/*
+ * Input movie: the joypad input of every frame since power on, stored as the
+ * list of frames at which the latched keys changed. Because the machine is
+ * deterministic and the keys are latched once per frame (see Joystick.latch),
+ * replaying a movie from reset reproduces the recorded session exactly.
+ *
+ * File layout: "RMMV" magic, version, rom CRC32, then one record per change:
+ * varint frames since the previous record, port 1 byte, port 2 byte. The last
+ * record marks the end of the movie with bit 7 of the port 2 byte.
+ */
+
+public final class Movie {
+  static final int MAGIC   = 0x524D4D56; // "RMMV"
+  static final int VERSION = 1;
+  static final int END     = 0x80;
+
+  int romCrc;
+  private int[] frames;                 // frame of each change
+  private int[] inputs;                 // port 1 byte | port 2 byte << 8
+  private int count;
+  private int length;                   // frames in the movie
+  private boolean recording;
+  private int next;                     // next change to replay
+
+  private Movie(int romCrc, boolean recording) {
+    this.romCrc = romCrc;
+    this.recording = recording;
+    frames = new int[256];
+    inputs = new int[256];
+  }
+
+  public static Movie record(int romCrc) {
+    return new Movie(romCrc, true);
+  }
+
+  public static Movie load(String path, int romCrc) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+    try {
+      if(in.readInt() != MAGIC) throw new IOException("not a movie");
+      int version = in.readInt();
+      if(version != VERSION) throw new IOException("unsupported movie version " + version);
+      Movie movie = new Movie(in.readInt(), false);
+      if(movie.romCrc != romCrc) throw new IOException("movie was recorded with another rom");
+
+      int frame = 0;
+      while(true) {
+        int delta = 0, shift = 0, b;
+        do { b = in.readUnsignedByte(); delta |= (b & 0x7F) << shift; shift += 7; } while((b & 0x80) != 0);
+        frame += delta;
+        int port1 = in.readUnsignedByte(), port2 = in.readUnsignedByte();
+        if((port2 & END) != 0) { movie.length = frame; break; }
+        movie.add(frame, port1 | (port2 << 8));
+      }
+      return movie;
+    }
+    finally { in.close(); }
+  }
+
+  public void save(String path) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(romCrc);
+      int frame = 0;
+      for(int i=0; i <= count; i++) {
+        int f = (i < count) ? frames[i] : length;
+        int input = (i < count) ? inputs[i] : (END << 8);
+        for(int delta = f - frame; ; delta >>>= 7) {
+          if(delta < 0x80) { out.writeByte(delta); break; }
+          out.writeByte((delta & 0x7F) | 0x80);
+        }
+        out.writeByte(input & 0xFF);
+        out.writeByte(input >> 8);
+        frame = f;
+      }
+    }
+    finally { out.close(); }
+  }
+
+  /* public final void frame(int frame, Joystick joy)
+   *   Called at the start of every real frame, after the keys are latched:
+   *   records the latched keys, or replaces them with the recorded ones.
+   */
+  public final void frame(int frame, Joystick joy) {
+    if(recording) {
+      int input = joy.in1 | (joy.in2 << 8);
+      if(count == 0 || inputs[count - 1] != input) add(frame, input);
+      length = frame + 1;
+    }
+    else {
+      while(next < count && frames[next] <= frame) next++;
+      if(next > 0) {  // keep replaying the last change, whatever the keyboard says
+        joy.in1 = inputs[next - 1] & 0xFF;
+        joy.in2 = inputs[next - 1] >> 8;
+      }
+    }
+  }
+
+  public boolean isRecording() {
+    return recording;
+  }
+
+  // Frames recorded so far, or in the movie being replayed.
+  public int length() {
+    return length;
+  }
+
+  private void add(int frame, int input) {
+    if(count == frames.length) {
+      int[] f = new int[count * 2], in = new int[count * 2];
+      System.arraycopy(frames, 0, f, 0, count);
+      System.arraycopy(inputs, 0, in, 0, count);
+      frames = f;
+      inputs = in;
+    }
+    frames[count] = frame;
+    inputs[count] = input;
+    count++;
+  }
+}
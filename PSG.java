@@ -1,32 +1,65 @@
 import javax.sound.sampled.*;
 
+/*
+ * Band-limited synthesis: instead of point-sampling the channels once per output
+ * sample, every change in a channel's output level is added as a delta into a
+ * buffer at its exact Z80 cycle, through a windowed-sinc step kernel picked by the
+ * fractional sample position (BLIP buffer style). Integrating the deltas once per
+ * sample gives the output at any host rate without aliasing, and the work done
+ * is proportional to the number of transitions rather than samples x channels.
+ */
+
 public final class PSG {
-	int regs0, regs1, regs2;             // channel data
-	int vol0, vol1, vol2;                // channel volume
-	int polarity0, polarity1, polarity2; // output polarity of each channel (1 or -1)
-	int counter0, counter1, counter2;    // clock counter for each channel
-	int clock = 3579545 / 16;            // clock frequency (NTSC only)
-	int tick  = (clock / 60) / 735;      // how many ticks in a frame
+	static final int TAPS = 16;          // length of the step kernel in samples
+	static final int PHASES = 64;        // fractional sample positions of the kernel
+	static final int LEAD = 2;           // samples of slack before the frame for timing jitter
+	static final int[][] kernel = makeKernel();
+
+	int regs0, regs1, regs2, regs3;      // channel data
+	int vol0, vol1, vol2, vol3;          // channel volume
+	int polarity0, polarity1, polarity2, polarity3; // output polarity of each channel (1 or -1)
+	int next0, next1, next2, next3;      // cycle of the next toggle of each channel, relative to frameStart
+	int amp0, amp1, amp2, amp3;          // level each channel last contributed to the output
+	int lfsr;                            // noise shift register
+	int noiseTaps;                       // feedback taps: bits 0 and 3 for white noise, bit 0 for periodic
+	static final int CYCLES_PER_FRAME = 263 * 228; // Z80 cycles in one frame of MainThread
+	long frameStart;                     // Z80 cycle at which the current audio frame started
+	int frameSamples = 735;              // samples in the current frame, varies slightly with the rate control
+	int nextFrameSamples = 735;
+	long factor;                         // output samples per Z80 cycle (32.32 fixed point)
+	int offset;                          // sample position of frameStart (16.16 fixed point)
+	int[] deltas;                        // level changes to integrate, scaled by the kernel (1.15 fixed point)
+	int level;                           // running sum of deltas
 	int current;                         // currently latched channel
-	boolean crappy_sync = true;          // crappy sound synchronization method (experimental)
+	boolean crappy_sync = true;          // pace emulation to real time (see FramePacer)
 
 	AudioFormat format;
 	SourceDataLine line;
+	volatile AudioOutput audio;  // ring buffer drained by the audio thread, null once closed
 	DataLine.Info info;
     byte[] buffer; // buffer of sound for each frame
     int sampleRate = 44100; // 44.1 KHz for sampling rate
-    int bufferLength = 735; // Length is sampleRate / Frames_per_second (60 for NTSC)
-    int bufsiz;
-	public boolean enabled, chan0, chan1, chan2; // Enabled/disabled flags for sound and channels
+    int bufferLength = sampleRate / 60; // Length is sampleRate / Frames_per_second (60 for NTSC)
+	public boolean enabled, chan0, chan1, chan2, chan3; // Enabled/disabled flags for sound and channels
 	
 	public PSG() {
-		enabled = true; // enable sound ...
-		chan0 = true; chan1 = true; chan2 = true; // ... and all channels
+		this(true);
+	}
+	
+	/* public PSG(boolean sound)
+	 *   With sound == false no audio line is opened and the PSG stays disabled (headless runs).
+	 */
+	public PSG(boolean sound) {
+		enabled = sound; // enable sound ...
+		chan0 = true; chan1 = true; chan2 = true; chan3 = true; // ... and all channels
 
 		// Set up audio data line for output to speakers
 		format = new AudioFormat(sampleRate, 8, 1, true, false);
 		info = new DataLine.Info(SourceDataLine.class, format);
-		if (!AudioSystem.isLineSupported(info)) {
+		if (!sound) {
+			// no audio line for headless runs
+		}
+		else if (!AudioSystem.isLineSupported(info)) {
 			enabled = false;
 			System.out.println("PSG ERROR: Audio format not supported, sound is DISABLED");
 		}
@@ -34,30 +67,77 @@ public final class PSG {
 			try {
 				line = (SourceDataLine)AudioSystem.getLine(info);
 				line.open(format);
-				buffer = new byte[bufferLength];
-				bufsiz = line.getBufferSize();
 				line.start();
+				audio = new AudioOutput(line, 8192, bufferLength << 2); // ring of ~11 frames, 4 frames queued in the line
+				audio.start();
 			} catch(LineUnavailableException e) { enabled = false; System.out.println("PSG: ERROR - no available audio line"); }
 		}
 
+		buffer = new byte[bufferLength + (bufferLength >> 6)]; // room for the rate control
+		deltas = new int[buffer.length + LEAD + TAPS + 4];
 		reset();
 	}
 	
 	public void reset() {
-		polarity0 = 1; polarity1 = 1; polarity2 = 1;
-		vol0 = 0; vol1 = 0; vol2 = 0;
-		regs0 = 0; regs1 = 0; regs2 = 0;
+		polarity0 = 1; polarity1 = 1; polarity2 = 1; polarity3 = 1;
+		vol0 = 0; vol1 = 0; vol2 = 0; vol3 = 0;
+		regs0 = 0; regs1 = 0; regs2 = 0; regs3 = 0;
+		next0 = 0; next1 = 0; next2 = 0; next3 = 0;
+		amp0 = 0; amp1 = 0; amp2 = 0; amp3 = 0;
+		lfsr = 0x8000; noiseTaps = 0x0001;
+		frameStart = 0; offset = 0; level = 0;
+		frameSamples = nextFrameSamples = bufferLength;
+		factor = ((long)frameSamples << 32) / CYCLES_PER_FRAME;
+		java.util.Arrays.fill(deltas, 0);
+	}
+
+	public void saveState(java.nio.ByteBuffer buf) {
+		buf.putShort((short)regs0).putShort((short)regs1).putShort((short)regs2).put((byte)regs3);
+		buf.put((byte)vol0).put((byte)vol1).put((byte)vol2).put((byte)vol3);
+		buf.put((byte)polarity0).put((byte)polarity1).put((byte)polarity2).put((byte)polarity3);
+		buf.putInt(next0).putInt(next1).putInt(next2).putInt(next3);
+		buf.put((byte)amp0).put((byte)amp1).put((byte)amp2).put((byte)amp3);
+		buf.putShort((short)lfsr).put((byte)noiseTaps).put((byte)current);
+		buf.putLong(frameStart).putInt(offset).putInt(level);
+		buf.putShort((short)frameSamples).putShort((short)nextFrameSamples);
+		for(int i=0; i < deltas.length; i++) buf.putInt(deltas[i]); // kernel tails still to be played
+	}
+	
+	public void loadState(java.nio.ByteBuffer buf) {
+		regs0 = buf.getShort() & 0x3FF; regs1 = buf.getShort() & 0x3FF; regs2 = buf.getShort() & 0x3FF; regs3 = buf.get() & 0x7;
+		vol0 = buf.get(); vol1 = buf.get(); vol2 = buf.get(); vol3 = buf.get();
+		polarity0 = buf.get(); polarity1 = buf.get(); polarity2 = buf.get(); polarity3 = buf.get();
+		next0 = buf.getInt(); next1 = buf.getInt(); next2 = buf.getInt(); next3 = buf.getInt();
+		amp0 = buf.get(); amp1 = buf.get(); amp2 = buf.get(); amp3 = buf.get();
+		lfsr = buf.getShort() & 0xFFFF; noiseTaps = buf.get(); current = buf.get();
+		frameStart = buf.getLong(); offset = buf.getInt(); level = buf.getInt();
+		frameSamples = buf.getShort(); nextFrameSamples = buf.getShort();
+		factor = ((long)frameSamples << 32) / CYCLES_PER_FRAME;
+		for(int i=0; i < deltas.length; i++) deltas[i] = buf.getInt();
+	}
+	
+	/* public void close()
+	 *   Stops the audio thread and with it the audio line, when the emulator quits or
+	 *   the PSG is dropped. A closed PSG goes on synthesizing, but nothing is played.
+	 */
+	public void close() {
+		if(audio == null) return;
+		audio.shutdown();
+		audio = null;
 	}
 
 	public void toggleEnabled() {
 		enabled = !enabled;
 	}
 	
-	/* public final void write(int value)
-	 *   Handles data write to PSG ports at address $7F and mirrored at $7E
+	/* public final void write(int value, long cycle)
+	 *   Handles data write to PSG ports at address $7F and mirrored at $7E,
+	 *   made at the given Z80 cycle (see EZ80.cycle()).
 	 */
-	public final void write(int value) {
-		if(!enabled) return;
+	public final void write(int value, long cycle) {
+		// bring the output up to the moment of the write before changing any register
+		int time = (int)(cycle - frameStart);
+		if(enabled) run(time);
 		
 		if((value & 0x80) != 0) {
 			current = (value >> 4) & 0x7;
@@ -84,10 +164,10 @@ public final class PSG {
 					vol2 = ~value & 0xF;
 					break;
 				case 6:    // noise data
-					//regs3 = value & 0xF;
+					writeNoise(value);
 					break;
 				case 7:    // noise volume
-					//vol3 = ~value & 0xF;
+					vol3 = ~value & 0xF;
 					break;
 			}
 		}
@@ -116,47 +196,184 @@ public final class PSG {
 					vol2 = ~value & 0xF;
 					break;
 				case 6:    // noise data
-					//regs3 = value & 0xF;
+					writeNoise(value);
 					break;
 				case 7:    // noise volume
-					//vol3 = ~value & 0xF;
+					vol3 = ~value & 0xF;
 					break;
 			}
 		}
+		if(enabled) levels(time);
 	}
 	
-	/* public final void output()
-	 *   Outputs audio data to speakers.
+	/* private void writeNoise(int value)
+	 *   Sets the noise mode (bit 2: white/periodic) and shift rate (bits 0-1, 3 = tone 2 rate).
+	 *   Any write to the noise register resets the shift register.
 	 */
-	public final void output() {
-		if(!enabled) return;
-		
-		for(int i=0; i < bufferLength; i++) {
-			// channel 0 - square wave generator
-			buffer[i] = 0;
-			if(chan0) {
-				buffer[i] = (byte)(vol0 * polarity0);
-				counter0 -= tick;
-				if(counter0 <= 0) { counter0 += regs0 & 0x3FF; polarity0 = (polarity0 == 1 ? -1 : 1); }
+	private void writeNoise(int value) {
+		regs3 = value & 0x7;
+		noiseTaps = ((regs3 & 0x4) != 0) ? 0x0009 : 0x0001;
+		lfsr = 0x8000;
+	}
+	
+	/* private void run(int time)
+	 *   Steps the channels up to the given cycle of the frame, adding every output
+	 *   transition to the delta buffer. Silent channels skip ahead without output.
+	 */
+	private void run(int time) {
+		int period;
+
+		// channels 0-2 - square wave generators, toggling every 16 * data cycles
+		period = Math.max(regs0 & 0x3FF, 1) << 4;
+		if(amp0 == 0 && (vol0 == 0 || !chan0)) {
+			if(next0 <= time) { int n = (time - next0) / period + 1; next0 += n * period; if((n & 1) != 0) polarity0 = -polarity0; }
+		}
+		else while(next0 <= time) {
+			polarity0 = -polarity0;
+			int a = chan0 ? vol0 * polarity0 : 0;
+			if(a != amp0) { addDelta(next0, a - amp0); amp0 = a; }
+			next0 += period;
+		}
+
+		period = Math.max(regs1 & 0x3FF, 1) << 4;
+		if(amp1 == 0 && (vol1 == 0 || !chan1)) {
+			if(next1 <= time) { int n = (time - next1) / period + 1; next1 += n * period; if((n & 1) != 0) polarity1 = -polarity1; }
+		}
+		else while(next1 <= time) {
+			polarity1 = -polarity1;
+			int a = chan1 ? vol1 * polarity1 : 0;
+			if(a != amp1) { addDelta(next1, a - amp1); amp1 = a; }
+			next1 += period;
+		}
+
+		period = Math.max(regs2 & 0x3FF, 1) << 4;
+		if(amp2 == 0 && (vol2 == 0 || !chan2)) {
+			if(next2 <= time) { int n = (time - next2) / period + 1; next2 += n * period; if((n & 1) != 0) polarity2 = -polarity2; }
+		}
+		else while(next2 <= time) {
+			polarity2 = -polarity2;
+			int a = chan2 ? vol2 * polarity2 : 0;
+			if(a != amp2) { addDelta(next2, a - amp2); amp2 = a; }
+			next2 += period;
+		}
+
+		// channel 3 - periodic/white noise generator, the shift register steps on every other toggle
+		period = (((regs3 & 3) == 3) ? Math.max(regs2 & 0x3FF, 1) : (0x10 << (regs3 & 3))) << 4;
+		while(next3 <= time) {
+			polarity3 = -polarity3;
+			if(polarity3 > 0) {
+				lfsr = (lfsr >> 1) | ((Integer.bitCount(lfsr & noiseTaps) & 1) << 15);
+				int a = chan3 ? vol3 * (((lfsr & 1) << 1) - 1) : 0;
+				if(a != amp3) { addDelta(next3, a - amp3); amp3 = a; }
 			}
+			next3 += period;
+		}
+	}
+
+	/* private void levels(int time)
+	 *   Adds the level changes caused by a register write (volume, noise reset)
+	 *   or by a channel being switched on or off.
+	 */
+	private void levels(int time) {
+		int a;
+		a = chan0 ? vol0 * polarity0 : 0;
+		if(a != amp0) { addDelta(time, a - amp0); amp0 = a; }
+		a = chan1 ? vol1 * polarity1 : 0;
+		if(a != amp1) { addDelta(time, a - amp1); amp1 = a; }
+		a = chan2 ? vol2 * polarity2 : 0;
+		if(a != amp2) { addDelta(time, a - amp2); amp2 = a; }
+		a = chan3 ? vol3 * (((lfsr & 1) << 1) - 1) : 0;
+		if(a != amp3) { addDelta(time, a - amp3); amp3 = a; }
+	}
+
+	/* private void addDelta(int time, int delta)
+	 *   Adds a band-limited step of the given height at a cycle of the current frame.
+	 */
+	private void addDelta(int time, int delta) {
+		int pos = offset + (int)((time * factor) >> 16);
+		int i = (pos >> 16) + LEAD;
+		if(i < 0) i = 0;
+		else if(i > deltas.length - TAPS) i = deltas.length - TAPS;
+		int[] k = kernel[(pos >> (16 - 6)) & (PHASES - 1)];
+		for(int j=0; j < TAPS; j++)
+			deltas[i + j] += k[j] * delta;
+	}
+
+	/* public final void output(long cycle)
+	 *   Finishes the frame ending at the given Z80 cycle and outputs it to the speakers.
+	 */
+	public final void output(long cycle) {
+		output(cycle, true);
+	}
+	
+	/* public final void output(long cycle, boolean play)
+	 *   As above, but the frame's samples are discarded when play is false (fast-forward).
+	 */
+	public final void output(long cycle, boolean play) {
+		int end = (int)(cycle - frameStart);
+		if(enabled) {
+			run(end);
+			levels(end);
 			
-			// channel 1 - square wave generator
-			if(chan1) {
-				buffer[i] += (byte)(vol1 * polarity1);
-				counter1 -= tick;
-				if(counter1 <= 0) { counter1 += regs1 & 0x3FF; polarity1 = (polarity1 == 1 ? -1 : 1); }
+			for(int i=0; i < frameSamples; i++) {
+				level += deltas[i];
+				int s = (level + (1 << 14)) >> 15;
+				buffer[i] = (byte)(s > 127 ? 127 : (s < -128 ? -128 : s));
 			}
+			// carry the kernel tails over to the next frame
+			int n = deltas.length - frameSamples;
+			System.arraycopy(deltas, frameSamples, deltas, 0, n);
+			java.util.Arrays.fill(deltas, n, deltas.length, 0);
 			
-			// channel 2 - square wave generator
-			if(chan2) {
-				buffer[i] += (byte)(vol2 * polarity2);
-				counter2 -= tick;
-				if(counter2 <= 0) { counter2 += regs2 & 0x3FF; polarity2 = (polarity2 == 1 ? -1 : 1); }
+			AudioOutput out = audio;     // close() may drop it meanwhile
+			if(play && out != null) out.write(buffer, 0, frameSamples); // hand over to the audio thread
+
+			// keep the fraction of a sample the frame ran over or under
+			offset += (int)((end * factor) >> 16) - (frameSamples << 16);
+			offset = Math.max(-(1 << 16), Math.min(1 << 16, offset));
+		}
+		next0 = Math.max(next0 - end, 0); next1 = Math.max(next1 - end, 0);
+		next2 = Math.max(next2 - end, 0); next3 = Math.max(next3 - end, 0);
+		frameStart = cycle;
+		frameSamples = nextFrameSamples;
+		factor = ((long)frameSamples << 32) / CYCLES_PER_FRAME;
+	}
+	
+	/* private static int[][] makeKernel()
+	 *   Blackman windowed sinc impulses at PHASES fractional offsets, cut off a little
+	 *   below the output Nyquist frequency. Each phase sums to exactly 1.0 (1 << 15)
+	 *   so the integrated steps never drift.
+	 */
+	private static int[][] makeKernel() {
+		int[][] k = new int[PHASES][TAPS];
+		double cutoff = 0.9;
+		for(int p=0; p < PHASES; p++) {
+			double[] h = new double[TAPS];
+			double sum = 0;
+			for(int j=0; j < TAPS; j++) {
+				double x = j - (TAPS / 2 - 1) - (double)p / PHASES;
+				double u = (x + TAPS / 2) / TAPS;
+				double w = (u <= 0 || u >= 1) ? 0 : 0.42 - 0.5 * Math.cos(2 * Math.PI * u) + 0.08 * Math.cos(4 * Math.PI * u);
+				double y = Math.PI * x * cutoff;
+				h[j] = w * ((x == 0) ? 1 : Math.sin(y) / y);
+				sum += h[j];
 			}
-			
-			// channel 3 - periodic/white noise generator (not implemented yet)
+			int total = 0, peak = 0;
+			for(int j=0; j < TAPS; j++) {
+				k[p][j] = (int)Math.round(h[j] / sum * (1 << 15));
+				total += k[p][j];
+				if(k[p][j] > k[p][peak]) peak = j;
+			}
+			k[p][peak] += (1 << 15) - total;
 		}
-		
-		line.write(buffer, 0, bufferLength); // output data to speakers
+		return k;
+	}
+	
+	/* public void setRate(double ratio)
+	 *   Dynamic rate control: from the next frame on, each emulated frame is resampled
+	 *   into ratio times the nominal number of samples (ratio should stay within 1 +- 0.5%).
+	 */
+	public void setRate(double ratio) {
+		nextFrameSamples = Math.min((int)Math.round(bufferLength * ratio), buffer.length);
 	}
 }
@@ -0,0 +1,50 @@
+/*
+ * Measures how many samples per second the PSG synthesizes, with the noise
+ * channel off and in each of its modes, on top of the three tone channels:
+ *
+ *   tones           tones 0-2 playing, noise off
+ *   periodic        + periodic noise at the fastest fixed rate
+ *   white           + white noise at the fastest fixed rate
+ *   white-tone2     + white noise at the rate of tone 2
+ *
+ * Usage: java -cp Remaster.jar PSGBenchmark [frames]
+ */
+
+public final class PSGBenchmark {
+  static final String[] SETUPS = { "tones", "periodic", "white", "white-tone2" };
+  static final int PASSES = 3;
+
+  static PSG setup(int n) {
+    PSG psg = new PSG(false);
+    psg.enabled = true;
+    int[] writes = { 0x80 | 0x0E, 0x06, 0x90,        // tone 0: period 0x6E, volume 15
+                     0xA0 | 0x05, 0x0A, 0xB2,        // tone 1: period 0xA5, volume 13
+                     0xC0 | 0x08, 0x01, 0xD4 };      // tone 2: period 0x18, volume 11
+    for(int i=0; i < writes.length; i++) psg.write(writes[i], 0);
+    if(n == 1) psg.write(0xE0, 0);
+    if(n == 2) psg.write(0xE4, 0);
+    if(n == 3) psg.write(0xE7, 0);
+    psg.write((n == 0) ? 0xFF : 0xF0, 0);              // noise volume
+    return psg;
+  }
+
+  public static void main(String args[]) {
+    int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+    for(int n=0; n < SETUPS.length; n++) {
+      PSG psg = setup(n);
+      long cycle = 0;
+      double best = 0;
+      for(int pass=0; pass < PASSES; pass++) {
+        long samples = 0, start = System.nanoTime();
+        for(int f=0; f < frames; f++) {
+          samples += psg.frameSamples;
+          cycle += PSG.CYCLES_PER_FRAME;
+          psg.output(cycle, false);
+        }
+        best = Math.max(best, samples / ((System.nanoTime() - start) / 1e9));
+      }
+      System.out.println("PSG: " + SETUPS[n] + ": " + Math.round(best / 1e6 * 10) / 10.0 + " M samples/sec ("
+                         + Math.round(best / psg.sampleRate) + "x real time)");
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Reference waveform check of the PSG. Feeds a fixed stream of register writes,
+ * timestamped with Z80 cycles and several of them in the middle of frames, and
+ * compares the samples PSG.output produces against a reference model that
+ * steps the tone and noise generators one cycle at a time.
+ *
+ * PSG output is band-limited (see PSG), so a change of level spreads over the
+ * kernel's taps and reaches the output LATENCY samples late. Samples at least
+ * MARGIN samples away from every change in the reference are compared exactly
+ * (one step of rounding allowed); the rest are only counted.
+ * Exits with status 1 if any sample differs.
+ *
+ * Usage: java -cp Remaster.jar PSGCheck
+ */
+
+public final class PSGCheck {
+  static final int FRAMES = 12;
+  static final int LATENCY = PSG.LEAD + PSG.TAPS / 2 - 1;
+  static final int MARGIN = PSG.TAPS / 2 + 2;
+
+  // {cycle, value}: tone periods and volumes, a period change while the tone plays,
+  // volume changes in mid-frame, a channel muted, the noise in both modes
+  static final int[][] WRITES = {
+    { 0, 0x80 | 0x04 }, { 0, 0x19 },            // tone 0 period 0x194
+    { 0, 0x90 },                                 // tone 0 volume 15
+    { 20000, 0x94 },                             // ... 11, a third into frame 0
+    { 45000, 0xA0 | 0x08 }, { 45000, 0x3F },     // tone 1 period 0x3F8
+    { 45000, 0xB6 },                             // tone 1 volume 9
+    { 70000, 0x80 | 0x0C }, { 70010, 0x0A },     // tone 0 period 0x0AC, split between two writes
+    { 100000, 0x9F },                            // tone 0 off
+    { 130000, 0xC0 | 0x00 }, { 130000, 0x30 },   // tone 2 period 0x300
+    { 130000, 0xD8 },                            // tone 2 volume 7
+    { 160000, 0xE0 | 0x02 },                     // periodic noise, rate 2
+    { 160000, 0xF2 },                            // noise volume 13
+    { 250000, 0xE4 | 0x03 },                     // white noise at the tone 2 rate
+    { 330000, 0xBF }, { 330000, 0xDF },          // tones 1 and 2 off
+    { 400000, 0xE4 | 0x01 },                     // white noise, rate 1
+    { 500000, 0xFA },                            // noise volume 5
+    { 600000, 0xFF },                            // noise off
+  };
+
+  // Reference: the sum of the four channel levels after each cycle of the run.
+  static int[] reference(int cycles) {
+    int[] level = new int[cycles];
+    int[] regs = new int[4], vol = new int[4], polarity = { 1, 1, 1, 1 }, next = new int[4];
+    int current = 0, lfsr = 0x8000, w = 0;
+    boolean white = false;
+
+    for(int t = 0; t < cycles; t++) {
+      // the generators toggle first, then the writes of this cycle apply
+      for(int ch = 0; ch < 4; ch++) {
+        if(t < next[ch]) continue;
+        int period = (ch < 3) ? regs[ch] : ((regs[3] & 3) == 3) ? regs[2] : 0x10 << (regs[3] & 3);
+        polarity[ch] = -polarity[ch];
+        if(ch == 3 && polarity[ch] > 0) {
+          int feedback = white ? ((lfsr ^ (lfsr >> 3)) & 1) : (lfsr & 1);
+          lfsr = (lfsr >> 1) | (feedback << 15);
+        }
+        next[ch] += Math.max(period, 1) * 16;
+      }
+      while(w < WRITES.length && WRITES[w][0] == t) {
+        int value = WRITES[w++][1];
+        if((value & 0x80) != 0) current = (value >> 4) & 7;
+        int ch = current >> 1;
+        if((current & 1) != 0) vol[ch] = ~value & 0xF;
+        else if(ch == 3) { regs[3] = value & 7; white = (value & 4) != 0; lfsr = 0x8000; }
+        else if((value & 0x80) != 0) regs[ch] = (regs[ch] & 0x3F0) | (value & 0xF);
+        else regs[ch] = (regs[ch] & 0xF) | ((value & 0x3F) << 4);
+      }
+      level[t] = vol[0] * polarity[0] + vol[1] * polarity[1] + vol[2] * polarity[2] + vol[3] * (((lfsr & 1) << 1) - 1);
+    }
+    return level;
+  }
+
+  public static void main(String args[]) {
+    PSG psg = new PSG(false);
+    psg.enabled = true;
+    int samples = psg.frameSamples, cycles = FRAMES * PSG.CYCLES_PER_FRAME;
+
+    byte[] out = new byte[FRAMES * samples];
+    int w = 0;
+    for(int frame = 0; frame < FRAMES; frame++) {
+      long end = (long)(frame + 1) * PSG.CYCLES_PER_FRAME;
+      for(; w < WRITES.length && WRITES[w][0] < end; w++) psg.write(WRITES[w][1], WRITES[w][0]);
+      psg.output(end, false);
+      System.arraycopy(psg.buffer, 0, out, frame * samples, samples);
+    }
+
+    int[] level = reference(cycles);
+    // cycles at which the reference level changes, to find the samples away from them
+    boolean[] edge = new boolean[cycles];
+    for(int t = 1; t < cycles; t++) edge[t] = level[t] != level[t - 1];
+
+    double cyclesPerSample = (double)PSG.CYCLES_PER_FRAME / samples;
+    int compared = 0, skipped = 0, wrong = 0;
+    for(int s = 0; s < out.length; s++) {
+      int t = (int)((s - LATENCY) * cyclesPerSample);
+      int from = (int)((s - LATENCY - MARGIN) * cyclesPerSample), to = (int)((s - LATENCY + MARGIN) * cyclesPerSample);
+      if(from < 0 || to >= cycles) { skipped++; continue; }
+      boolean settled = true;
+      for(int i = from + 1; i <= to && settled; i++) settled = !edge[i];
+      if(!settled) { skipped++; continue; }
+
+      compared++;
+      if(Math.abs(out[s] - level[t]) > 1) {
+        if(wrong++ < 10) System.out.println("PSGCHECK: sample " + s + " (cycle " + t + ") is " + out[s] + ", reference " + level[t]);
+      }
+    }
+    System.out.println("PSGCHECK: " + compared + " samples compared, " + skipped + " near a change of level, " + wrong + " differ");
+    if(wrong > 0 || compared < out.length / 2) System.exit(1);
+  }
+}
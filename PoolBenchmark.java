@@ -0,0 +1,56 @@
+import java.util.*;
+
+/*
+ * Scaling benchmark for EmulatorPool: runs the same batch of jobs (the given
+ * roms, repeated until there are at least two jobs per thread of the largest
+ * pool) on pools of 1, 2, 4... threads up to the number of processors, and
+ * prints the throughput of each, its speedup over one thread and its
+ * efficiency (speedup / threads). The results of every job must be identical
+ * whatever the pool size, or the machines are not isolated; the benchmark
+ * exits with status 1 if they are not.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar PoolBenchmark <frames> <rom> [rom...]
+ */
+
+public final class PoolBenchmark {
+  public static void main(String args[]) throws Exception {
+    if(args.length < 2) {
+      System.out.println("Usage: PoolBenchmark <frames> <rom> [rom...]");
+      System.exit(1);
+    }
+    int frames = Integer.parseInt(args[0]);
+    int processors = Runtime.getRuntime().availableProcessors();
+
+    List<String> jobs = new ArrayList<String>();
+    while(jobs.size() < 2 * processors)
+      jobs.addAll(Arrays.asList(args).subList(1, args.length));
+
+    // warm up the JIT so the single thread run is not penalized
+    EmulatorPool.run(args[1], frames);
+
+    List<String> expected = null;
+    double single = 0;
+    for(int threads = 1; ; threads = Math.min(threads * 2, processors)) {
+      EmulatorPool pool = new EmulatorPool(threads);
+      long start = System.nanoTime();
+      List<EmulatorPool.Result> results = pool.runAll(jobs, frames);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      pool.shutdown();
+
+      List<String> lines = new ArrayList<String>();
+      for(int i=0; i < results.size(); i++) lines.add(results.get(i).toString());
+      if(expected == null) expected = lines;
+      else if(!lines.equals(expected)) {
+        System.out.println("POOL: results with " + threads + " threads differ from 1 thread");
+        System.exit(1);
+      }
+
+      double fps = frames * jobs.size() / seconds;
+      if(threads == 1) single = fps;
+      System.out.println("POOL: " + threads + " threads: " + Math.round(fps) + " frames/sec, speedup "
+                         + Math.round(fps / single * 100) / 100.0 + ", efficiency " + Math.round(fps / single / threads * 100) + "%");
+      if(threads == processors) break;
+    }
+    System.out.println("POOL: " + jobs.size() + " jobs of " + frames + " frames on " + processors + " processors, results identical");
+  }
+}
@@ -1,4 +1,4 @@
-public final class Ports
+public class Ports
 {
   EZ80 z80;
   VDP vdp;
@@ -11,7 +11,7 @@ public final class Ports
   	this.joy = joy;
   }
   
-  public final int read(int port) {
+  public int read(int port) {
   	port &= 0xFF;
   	int retval = 0xFF;
     switch(port) {
@@ -52,7 +52,7 @@ public final class Ports
     return (retval & 0xFF);
   }
   
-  public final void write(int port, int value) {
+  public void write(int port, int value) {
     //port &= 0xFF;
   	
   	switch(port) {
@@ -65,7 +65,7 @@ public final class Ports
       	
       case 0x7E: // PSG port write (mirrored at $7F)
       case 0x7F:
-      	psg.write(value);
+      	psg.write(value, z80.cycle());
       	break;
 
       case 0xBE: // VDP Data Port
@@ -0,0 +1,159 @@
+import java.io.*;
+
+/*
+ * Cycle profiler for the Z80. Every executed instruction adds its cycles to
+ * a histogram slot for its address, bank-qualified: addresses in rom are
+ * counted by their offset in the rom image, so the same address in two
+ * different banks (as selected through the $FFFD-$FFFF mapper registers)
+ * goes to different slots. Ram addresses follow the rom.
+ *
+ * The cycles are also added to the function being run. A shadow call stack
+ * tracks the functions: a taken CALL or RST, or an interrupt, enters a
+ * function, and any instruction that moves SP above the entry frame leaves
+ * it. That catches RET and also code that drops its return address. Each
+ * distinct call path is a node of a call tree. write() exports the tree in
+ * the collapsed stack format of flamegraph.pl: "main;01:8123;00:0456 4242".
+ *
+ * Functions and addresses are named bank:address. Banks 0 and 1 are shown at
+ * $0000 and $4000 and the rest at $8000, where the Sega mapper normally pages them.
+ */
+
+public final class Profiler {
+  static final int MAX_DEPTH = 256;
+  static final int MAX_NODES = 1 << 16;     // beyond that, new call paths count in their caller
+
+  MemoryManager memory;
+  final int romSize;
+  final long[] cycles;                    // per rom offset, then per ram address
+  long total;
+
+  // call tree: node 0 is the code outside any call
+  private int[] nodeParent, nodeFunction;
+  private long[] nodeCycles;
+  private int nodes;
+  private int[] table;                      // (parent, function) -> node + 1, open addressing
+
+  private final int[] frameSp = new int[MAX_DEPTH], frameNode = new int[MAX_DEPTH];
+  private int depth;
+  private int node;
+
+  public Profiler(MemoryManager memory, int romSize) {
+    this.memory = memory;
+    this.romSize = (romSize + 0x3FFF) & ~0x3FFF;
+    cycles = new long[this.romSize + 0x10000];
+    nodeParent = new int[1024];
+    nodeFunction = new int[1024];
+    nodeCycles = new long[1024];
+    table = new int[MAX_NODES * 2];
+    nodes = 1;
+  }
+
+  // Histogram slot of a Z80 address under the current mapping.
+  final int key(int addr) {
+    int offset = memory.romOffset(addr);
+    return (offset >= 0) ? offset : romSize + (addr & 0xFFFF);
+  }
+
+  /* final void instruction(EZ80 z80, int key, int spent, int op, int sp)
+   *   Counts one instruction: its slot, the cycles it took, its opcode and SP
+   *   before it ran.
+   */
+  final void instruction(EZ80 z80, int key, int spent, int op, int sp) {
+    cycles[key] += spent;
+    nodeCycles[node] += spent;
+    total += spent;
+
+    int newSp = z80.sp & 0xFFFF;
+    while(depth > 0 && newSp > frameSp[depth - 1]) depth--;
+    node = (depth > 0) ? frameNode[depth - 1] : 0;
+    if((op == 0xCD || (op & 0xC7) == 0xC4 || (op & 0xC7) == 0xC7) && newSp == ((sp - 2) & 0xFFFF))
+      call(z80);
+  }
+
+  // Cycles spent without leaving the current function (idle loops skipped at once).
+  final void count(int key, int spent) {
+    cycles[key] += spent;
+    nodeCycles[node] += spent;
+    total += spent;
+  }
+
+  // Enters the function at pc, whose return address was just pushed.
+  final void call(EZ80 z80) {
+    if(depth == MAX_DEPTH) return;
+    frameSp[depth] = z80.sp & 0xFFFF;
+    frameNode[depth] = node = child(node, key(z80.pc));
+    depth++;
+  }
+
+  private int child(int parent, int function) {
+    int mask = table.length - 1;
+    int i = (parent * 0x9E3779B1 + function * 0x85EBCA77) >>> 7 & mask;
+    for(; table[i] != 0; i = (i + 1) & mask) {
+      int n = table[i] - 1;
+      if(nodeParent[n] == parent && nodeFunction[n] == function) return n;
+    }
+    if(nodes == MAX_NODES) return parent;
+    if(nodes == nodeParent.length) {
+      nodeParent = java.util.Arrays.copyOf(nodeParent, nodes * 2);
+      nodeFunction = java.util.Arrays.copyOf(nodeFunction, nodes * 2);
+      nodeCycles = java.util.Arrays.copyOf(nodeCycles, nodes * 2);
+    }
+    nodeParent[nodes] = parent;
+    nodeFunction[nodes] = function;
+    table[i] = nodes + 1;
+    return nodes++;
+  }
+
+  String name(int key) {
+    if(key >= romSize) return "ram:" + hex(key - romSize, 4);
+    int bank = key >> 14;
+    return hex(bank, 2) + ":" + hex((key & 0x3FFF) | (Math.min(bank, 2) << 14), 4);
+  }
+
+  private String path(int n) {
+    return (n == 0) ? "main" : path(nodeParent[n]) + ";" + name(nodeFunction[n]);
+  }
+
+  static String hex(int v, int digits) {
+    String s = Integer.toHexString(v).toUpperCase();
+    while(s.length() < digits) s = "0" + s;
+    return s;
+  }
+
+  // Writes the call tree as collapsed stacks, one line per call path with cycles of its own.
+  public void write(String path) throws IOException {
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(path)));
+    try {
+      for(int n = 0; n < nodes; n++)
+        if(nodeCycles[n] > 0) out.println(path(n) + " " + nodeCycles[n]);
+    }
+    finally { out.close(); }
+  }
+
+  // Prints the cycles per bank and the busiest addresses.
+  public void report(PrintStream out, int top) {
+    out.println("PROFILER: " + total + " cycles, " + nodes + " call paths");
+    int banks = romSize >> 14;
+    for(int bank = 0; bank <= banks; bank++) {
+      long sum = 0;
+      int end = (bank < banks) ? (bank + 1) << 14 : cycles.length;
+      for(int i = bank << 14; i < end; i++) sum += cycles[i];
+      if(sum > 0) out.println("  " + ((bank < banks) ? "bank " + hex(bank, 2) : "ram    ") + "  " + percent(sum) + "  " + sum);
+    }
+
+    // top addresses by repeated selection: top is small and this runs once
+    boolean[] shown = new boolean[cycles.length];
+    for(int t = 0; t < top; t++) {
+      int best = -1;
+      for(int i = 0; i < cycles.length; i++)
+        if(!shown[i] && cycles[i] > 0 && (best < 0 || cycles[i] > cycles[best])) best = i;
+      if(best < 0) break;
+      shown[best] = true;
+      out.println("  " + name(best) + "  " + percent(cycles[best]) + "  " + cycles[best]);
+    }
+  }
+
+  private String percent(long v) {
+    return String.format("%6.2f%%", 100.0 * v / Math.max(total, 1));
+  }
+}
@@ -95,9 +95,11 @@ public final class Remaster extends Frame {
   public void exit() {
   	if(mainloop != null) {
   		mainloop.stopEmulation();
+  		mainloop.saveCodeDataLog();
   		//memory.dumpMemory();
   		//vdp.dumpMemory();
   	}
+  	psg.close();
   	System.exit(0);
   }
   
@@ -169,12 +171,15 @@ public final class Remaster extends Frame {
     soundchan1.setState(psg.chan1);
     CheckboxMenuItem soundchan2 = new CheckboxMenuItem("Ligar/Desligar canal 0");
     soundchan2.setState(psg.chan2);
+    CheckboxMenuItem soundchan3 = new CheckboxMenuItem("Ligar/Desligar canal 3 (ruido)");
+    soundchan3.setState(psg.chan3);
     sound.add(enablesound);
     sound.add(crappysync);
     sound.addSeparator();
     sound.add(soundchan0);
     sound.add(soundchan1);
     sound.add(soundchan2);  
+    sound.add(soundchan3);
     menubar.add(sound);
     
     help = new Menu("Ajuda"); // Set up help menu
@@ -219,6 +224,7 @@ public final class Remaster extends Frame {
     soundchan0.addItemListener(new ItemListener() { public void itemStateChanged(ItemEvent e) { psg.chan0 = !psg.chan0; } } );    
     soundchan1.addItemListener(new ItemListener() { public void itemStateChanged(ItemEvent e) { psg.chan1 = !psg.chan1; } } );    
     soundchan2.addItemListener(new ItemListener() { public void itemStateChanged(ItemEvent e) { psg.chan2 = !psg.chan2; } } );
+    soundchan3.addItemListener(new ItemListener() { public void itemStateChanged(ItemEvent e) { psg.chan3 = !psg.chan3; } } );
     // Help menu
     about.addActionListener(new ActionListener() { public void actionPerformed(ActionEvent e) { aboutFrame.setVisible(true); } } );
     
@@ -0,0 +1,64 @@
+import java.io.*;
+
+/*
+ * Render-only benchmark: renders the 192 lines of a frame over and over from a
+ * fixed VRAM/CRAM snapshot, with no CPU or sound, and prints the frames/sec
+ * (best of a few passes) and a hash of the framebuffer so that a change can be
+ * checked to render the same picture. It also prints the bytes the rendering
+ * thread allocates per frame after the first pass, which warms up the JIT;
+ * rendering should not allocate at all.
+ *
+ * The snapshot is the vram.bin and cram.bin pair written by VDP.dumpMemory,
+ * shown with the power on registers (name table at $3800, sprites at $3F00,
+ * display on). Without them, VRAM and CRAM are filled from a fixed seed.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar RenderBenchmark [frames] [vram.bin cram.bin]
+ */
+
+public final class RenderBenchmark {
+  static final int PASSES = 5;
+
+  static void read(String path, byte[] data) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+    try { in.readFully(data); }
+    finally { in.close(); }
+  }
+
+  public static void main(String args[]) throws IOException {
+    int frames = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+    Screen screen = new Screen(null, 256, 192);
+    VDP vdp = new VDP(screen);
+    if(args.length > 2) {
+      read(args[1], vdp.vram);
+      read(args[2], vdp.cram);
+    }
+    else {
+      java.util.Random random = new java.util.Random(1);
+      random.nextBytes(vdp.vram);
+      random.nextBytes(vdp.cram);
+    }
+    vdp.regs[1] |= 0x40; // display on
+
+    java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+    com.sun.management.ThreadMXBean allocations = (threads instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean)threads : null;
+    long thread = Thread.currentThread().getId(), allocated = 0;
+
+    double best = 0;
+    for(int pass=0; pass < PASSES; pass++) {
+      long before = (allocations != null) ? allocations.getThreadAllocatedBytes(thread) : 0;
+      long start = System.nanoTime();
+      for(int f=0; f < frames; f++) {
+        for(int line=0; line < 192; line++) {
+          vdp.scanline = line;
+          vdp.renderLine();
+        }
+      }
+      best = Math.max(best, frames / ((System.nanoTime() - start) / 1e9));
+      if(pass > 0 && allocations != null) allocated += allocations.getThreadAllocatedBytes(thread) - before;
+    }
+    System.out.println("RENDER: " + Math.round(best) + " frames/sec, framebuffer hash "
+                       + Long.toHexString(Hash64.hash(screen.pixels, 0, screen.pixels.length)) + ", "
+                       + ((allocations != null) ? String.valueOf((double)allocated / ((PASSES - 1) * (long)frames)) : "unknown") + " bytes allocated/frame");
+  }
+}
@@ -0,0 +1,239 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * Rewind history: a save state is captured every few frames into a fixed size
+ * arena used as a ring, oldest snapshots being dropped when it fills up. Every
+ * KEY_INTERVAL-th snapshot is a keyframe; the others are stored as the XOR of
+ * the state with their keyframe, which is almost all zeros, and everything is
+ * packed with a small LZ77 coder; a group that outgrows the arena starts over
+ * with a new keyframe. Stepping back restores the newest snapshot and removes
+ * it from the history.
+ */
+
+public final class Rewind {
+  static final int KEY_INTERVAL = 60;  // snapshots per keyframe
+  static final int HASH_BITS = 14;
+
+  SaveState state;
+  private ByteBuffer view;
+  private int rawLength;               // size of an uncompressed snapshot
+  private byte[] key;                  // uncompressed keyframe the newest deltas refer to
+  private byte[] work;                 // snapshot being captured or restored
+  private byte[] packed;               // compressor output
+  private int[] table;                 // compressor hash table
+
+  private byte[] arena;
+  private int arenaPos;                // where the next snapshot is stored
+  private int[] offsets, lengths;      // ring of snapshots in the arena, oldest first
+  private boolean[] keys;
+  private int first, count;
+  private int sinceKey;                // snapshots captured since the newest keyframe
+  private int interval, frame;
+
+  public long captures, capturedBytes, captureNanos, keyframes;
+
+  /* public Rewind(SaveState state, int budget, int interval)
+   *   Keeps at most budget bytes of snapshots, taking one every interval frames.
+   */
+  public Rewind(SaveState state, int budget, int interval) {
+    this.state = state;
+    this.interval = interval;
+    rawLength = state.save().remaining();
+    key = new byte[rawLength];
+    work = new byte[rawLength];
+    packed = new byte[rawLength + (rawLength >> 6) + 16];
+    table = new int[1 << HASH_BITS];
+    view = ByteBuffer.wrap(work);
+
+    arena = new byte[budget];
+    int slots = Math.min(budget / 64 + 1, 65536);  // at most ~18 minutes at one snapshot per frame
+    offsets = new int[slots];
+    lengths = new int[slots];
+    keys = new boolean[slots];
+  }
+
+  /* public final void capture()
+   *   Called once per frame, between frames.
+   */
+  public final void capture() {
+    if(++frame < interval) return;
+    frame = 0;
+    long start = System.nanoTime();
+
+    byte[] raw = state.save().array();
+    boolean isKey = (sinceKey == 0 || count == 0);
+    int size = pack(raw, isKey);
+    if(!store(size, isKey)) {  // its keyframe was dropped to make room: start a new group
+      isKey = true;
+      sinceKey = 0;
+      size = pack(raw, true);
+      store(size, true);
+    }
+    sinceKey = (sinceKey + 1) % KEY_INTERVAL;
+
+    captures++;
+    capturedBytes += size;
+    captureNanos += System.nanoTime() - start;
+  }
+
+  /* public final boolean stepBack()
+   *   Restores the machine to the newest snapshot and drops it. Returns false
+   *   when the history is empty.
+   */
+  public final boolean stepBack() {
+    if(count == 0) return false;
+    int last = (first + count - 1) % offsets.length;
+
+    decompress(arena, offsets[last], lengths[last], work);
+    if(!keys[last])
+      for(int i=0; i < rawLength; i++) work[i] ^= key[i];
+    view.clear();
+    view.limit(rawLength);
+    state.load(view);
+
+    arenaPos = offsets[last];
+    count--;
+    frame = 0;
+    if(keys[last]) {  // back into the previous group: its keyframe becomes the reference
+      sinceKey = 0;
+      for(int n = count - 1; n >= 0; n--) {
+        int i = (first + n) % offsets.length;
+        if(keys[i]) {
+          decompress(arena, offsets[i], lengths[i], key);
+          sinceKey = (count - n) % KEY_INTERVAL;
+          break;
+        }
+      }
+    }
+    return true;
+  }
+
+  public void clear() {
+    first = count = arenaPos = sinceKey = frame = 0;
+  }
+
+  public String stats() {
+    long used = 0;
+    for(int n=0; n < count; n++) used += lengths[(first + n) % offsets.length];
+    return count + " snapshots (" + (Math.round(count * interval / 6.0) / 10.0) + " s), "
+           + (captures == 0 ? 0 : capturedBytes / captures) + " bytes/snapshot of " + rawLength + ", "
+           + (captures == 0 ? 0 : captureNanos / captures / 1000) + " us/capture, "
+           + (used >> 10) + "k of " + (arena.length >> 10) + "k used";
+  }
+
+  // Packs a snapshot into packed, as a keyframe (which becomes the reference
+  // for the next deltas) or as a delta. Returns the packed size.
+  private int pack(byte[] raw, boolean isKey) {
+    if(!isKey) {
+      for(int i=0; i < rawLength; i++) work[i] = (byte)(raw[i] ^ key[i]);
+      return compress(work, rawLength, packed, table);
+    }
+    System.arraycopy(raw, 0, key, 0, rawLength);
+    keyframes++;
+    return compress(raw, rawLength, packed, table);
+  }
+
+  // Copies a packed snapshot into the arena, dropping the oldest ones to make room.
+  // Returns false, storing nothing, for a delta whose own group had to be dropped.
+  private boolean store(int size, boolean isKey) {
+    if(size > arena.length) { clear(); return isKey; }
+    if(arenaPos + size > arena.length) {  // wrap: whatever lies past arenaPos is the oldest history
+      while(count > 0 && offsets[first] >= arenaPos) dropOldest();
+      arenaPos = 0;
+    }
+    while(count > 0 && (count == offsets.length || overlaps(first, arenaPos, size))) dropOldest();
+    if(!isKey && count == 0) return false;  // the newest group is the last to go
+
+    int i = (first + count) % offsets.length;
+    System.arraycopy(packed, 0, arena, arenaPos, size);
+    offsets[i] = arenaPos;
+    lengths[i] = size;
+    keys[i] = isKey;
+    count++;
+    arenaPos += size;
+    return true;
+  }
+
+  private boolean overlaps(int i, int start, int size) {
+    return offsets[i] < start + size && start < offsets[i] + lengths[i];
+  }
+
+  // Deltas cannot outlive their keyframe, so a whole group goes at once.
+  private void dropOldest() {
+    do {
+      first = (first + 1) % offsets.length;
+      count--;
+    } while(count > 0 && !keys[first]);
+  }
+
+  /* static int compress(byte[] src, int length, byte[] dst, int[] table)
+   *   LZ77 with 4 byte minimum matches found through a hash table. The output is
+   *   a series of (literal count, literals, match length, match distance) with
+   *   varint numbers; a match length of 0 ends the block. dst must hold at least
+   *   length + length/64 + 16 bytes. Returns the packed size.
+   */
+  static int compress(byte[] src, int length, byte[] dst, int[] table) {
+    Arrays.fill(table, 0);
+    ByteBuffer words = ByteBuffer.wrap(src); // compares long matches 8 bytes at a time
+    int out = 0, anchor = 0, i = 0;
+    int limit = length - 4;
+
+    while(i <= limit) {
+      int seq = (src[i] & 0xFF) | ((src[i+1] & 0xFF) << 8) | ((src[i+2] & 0xFF) << 16) | (src[i+3] << 24);
+      int h = (seq * 0x9E3779B1) >>> (32 - HASH_BITS);
+      int ref = table[h] - 1;
+      table[h] = i + 1;
+
+      if(ref < 0 || src[ref] != src[i] || src[ref+1] != src[i+1] || src[ref+2] != src[i+2] || src[ref+3] != src[i+3]) {
+        i++;
+        continue;
+      }
+      int match = 4;
+      while(i + match + 8 <= length && words.getLong(ref + match) == words.getLong(i + match)) match += 8;
+      while(i + match < length && src[ref + match] == src[i + match]) match++;
+
+      out = putVarint(dst, out, i - anchor);
+      System.arraycopy(src, anchor, dst, out, i - anchor);
+      out += i - anchor;
+      out = putVarint(dst, out, match);
+      out = putVarint(dst, out, i - ref);
+      i += match;
+      anchor = i;
+    }
+    out = putVarint(dst, out, length - anchor);
+    System.arraycopy(src, anchor, dst, out, length - anchor);
+    out += length - anchor;
+    return putVarint(dst, out, 0);
+  }
+
+  /* static int decompress(byte[] src, int offset, int length, byte[] dst)
+   *   Unpacks a block made by compress(). Returns the unpacked size.
+   */
+  static int decompress(byte[] src, int offset, int length, byte[] dst) {
+    int in = offset, end = offset + length, out = 0;
+    while(in < end) {
+      int literals = 0, match = 0, distance = 0, shift, b;
+      for(shift = 0; (b = src[in++]) < 0; shift += 7) literals |= (b & 0x7F) << shift;
+      literals |= b << shift;
+      System.arraycopy(src, in, dst, out, literals);
+      in += literals;
+      out += literals;
+
+      for(shift = 0; (b = src[in++]) < 0; shift += 7) match |= (b & 0x7F) << shift;
+      match |= b << shift;
+      if(match == 0) break;
+      for(shift = 0; (b = src[in++]) < 0; shift += 7) distance |= (b & 0x7F) << shift;
+      distance |= b << shift;
+
+      for(int from = out - distance; match > 0; match--) dst[out++] = dst[from++]; // may overlap, e.g. runs of zeros
+    }
+    return out;
+  }
+
+  private static int putVarint(byte[] dst, int out, int value) {
+    while(value >= 0x80) { dst[out++] = (byte)(value | 0x80); value >>>= 7; }
+    dst[out++] = (byte)value;
+    return out;
+  }
+}
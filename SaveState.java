@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Versioned snapshot of the whole machine: CPU, memory and mapper, VDP, PSG and
+ * joypads. Every component writes its own fields into one preallocated buffer
+ * in a fixed order, so saving and loading neither allocate nor use reflection.
+ * Snapshots are meant to be taken between frames (see MainThread).
+ *
+ * Version 2: joypads hold the latched keys and region bits instead of the live keys.
+ *
+ * Layout: "RMSS" magic, format version, rom size, then the EZ80, MemoryManager,
+ * VDP, PSG and Joystick sections.
+ */
+
+public final class SaveState {
+  static final int MAGIC   = 0x524D5353; // "RMSS"
+  static final int VERSION = 2;
+  static final int SIZE    = 0x20000;    // comfortably above the ~118k a snapshot takes
+
+  MemoryManager memory;
+  VDP vdp;
+  PSG psg;
+  EZ80 z80;
+  Joystick joy;
+  Cartridge cart;
+  ByteBuffer buffer;
+  int size;                              // bytes in a snapshot of this machine
+
+  public SaveState(Cartridge cart, MemoryManager memory, VDP vdp, PSG psg, EZ80 z80, Joystick joy) {
+    this.cart = cart;
+    this.memory = memory;
+    this.vdp = vdp;
+    this.psg = psg;
+    this.z80 = z80;
+    this.joy = joy;
+    buffer = ByteBuffer.allocate(SIZE);
+    size = save().limit();               // every section has a fixed length
+  }
+
+  /* public ByteBuffer save()
+   *   Captures the machine into the internal buffer and returns it, flipped for
+   *   reading. The buffer is reused by the next save.
+   */
+  public ByteBuffer save() {
+    buffer.clear();
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(cart.getRomSize());
+    z80.saveState(buffer);
+    memory.saveState(buffer);
+    vdp.saveState(buffer);
+    psg.saveState(buffer);
+    joy.saveState(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /* public void load(ByteBuffer buf)
+   *   Restores the machine from a snapshot made by save() for the rom currently
+   *   loaded. The snapshot is checked before anything is restored, so one that
+   *   is rejected leaves the machine as it was.
+   */
+  public void load(ByteBuffer buf) {
+    int start = buf.position();
+    if(buf.remaining() < 12 || buf.getInt(start) != MAGIC) throw new IllegalArgumentException("not a save state");
+    int version = buf.getInt(start + 4);
+    if(version != VERSION) throw new IllegalArgumentException("unsupported save state version " + version);
+    if(buf.getInt(start + 8) != cart.getRomSize()) throw new IllegalArgumentException("save state is for another rom");
+    if(buf.remaining() != size) throw new IllegalArgumentException("save state has " + buf.remaining() + " bytes instead of " + size);
+    buf.position(start + 12);
+    z80.loadState(buf);
+    memory.loadState(buf);
+    vdp.loadState(buf);
+    psg.loadState(buf);
+    joy.loadState(buf);
+  }
+
+  public void save(String path) throws IOException {
+    ByteBuffer buf = save();
+    FileOutputStream out = new FileOutputStream(path);
+    try { out.getChannel().write(buf); }
+    finally { out.close(); }
+  }
+
+  public void load(String path) throws IOException {
+    FileInputStream in = new FileInputStream(path);
+    try {
+      FileChannel channel = in.getChannel();
+      if(channel.size() > SIZE) throw new IllegalArgumentException("not a save state");
+      buffer.clear();
+      while(buffer.hasRemaining() && channel.read(buffer) >= 0);
+      buffer.flip();
+    }
+    finally { in.close(); }
+    load(buffer);
+  }
+}
@@ -0,0 +1,125 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/*
+ * Round trip check of save states (see SaveState). Runs a rom for a while with
+ * changing input, takes a snapshot, and checks that each of these continues
+ * exactly like the machine that took it, frame by frame (framebuffer, memory,
+ * audio samples and CPU):
+ *
+ *   the same machine after loading the snapshot back
+ *   a new machine that loads it
+ *   a machine loaded from a file written by save(path)
+ *
+ * It also checks that a truncated or overlong file is rejected without touching
+ * the machine, and reports how long saving and loading take.
+ * Exits with status 1 at the first failure.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar SaveStateCheck <rom> [frames before] [frames after]
+ */
+
+public final class SaveStateCheck {
+  Cartridge cart;
+  Hash64 hash = new Hash64();
+
+  public SaveStateCheck(Cartridge cart) {
+    this.cart = cart;
+  }
+
+  Headless machine() {
+    Headless emu = new Headless(cart);
+    emu.psg.enabled = true;            // synthesize the audio, so it is compared too (no line is opened)
+    return emu;
+  }
+
+  static SaveState state(Headless emu) {
+    return new SaveState(emu.cart, emu.memory, emu.vdp, emu.psg, emu.z80, emu.joy);
+  }
+
+  // Runs the frames with input that changes every few of them, and hashes what each frame left behind.
+  long run(Headless emu, int first, int frames) {
+    hash.reset(0);
+    for(int frame = first; frame < first + frames; frame++) {
+      emu.joy.byte1 = 0xFF & ~(1 << (frame / 7 % 6));
+      emu.machine.emulateFrame(true);
+      emu.psg.output(emu.z80.cycle(), false);
+      hash.update(emu.screen.pixels, 0, emu.screen.pixels.length);
+      hash.update(emu.memory.memory, 0, emu.memory.memory.length);
+      hash.update(emu.psg.buffer, 0, emu.psg.frameSamples);
+      hash.update(new int[] { emu.z80.pc, emu.z80.sp, emu.z80.a, emu.z80.flagreg, emu.z80.counter, (int)emu.z80.cycles }, 0, 6);
+    }
+    return hash.digest();
+  }
+
+  static void check(boolean ok, String what) {
+    System.out.println("SAVESTATE: " + what + (ok ? ": ok" : ": FAILED"));
+    if(!ok) System.exit(1);
+  }
+
+  // True if loading the bytes is refused and leaves the machine's state unchanged.
+  static boolean rejected(Headless emu, String path, byte[] bytes) throws IOException {
+    long before = emu.stateCrc();
+    FileOutputStream out = new FileOutputStream(path);
+    try { out.write(bytes); }
+    finally { out.close(); }
+    try {
+      state(emu).load(path);
+      return false;
+    }
+    catch(IllegalArgumentException e) {
+      return emu.stateCrc() == before;
+    }
+  }
+
+  public static void main(String args[]) throws IOException {
+    if(args.length < 1) {
+      System.out.println("Usage: SaveStateCheck <rom> [frames before] [frames after]");
+      System.exit(1);
+    }
+    int before = (args.length > 1) ? Integer.parseInt(args[1]) : 600;
+    int after = (args.length > 2) ? Integer.parseInt(args[2]) : 600;
+
+    Cartridge cart = new Cartridge();
+    cart.load(args[0]);
+    if(!cart.isLoaded()) System.exit(1);
+    SaveStateCheck check = new SaveStateCheck(cart);
+
+    Headless emu = check.machine();
+    check.run(emu, 0, before);
+    SaveState state = state(emu);
+    ByteBuffer buf = state.save();
+    byte[] snapshot = new byte[buf.remaining()];
+    buf.get(snapshot);
+    File file = File.createTempFile("remaster", ".state");
+    file.deleteOnExit();
+    state.save(file.getPath());
+
+    long expected = check.run(emu, before, after);
+    System.out.println("SAVESTATE: " + snapshot.length + " bytes, " + after + " frames after the snapshot hash to " + Long.toHexString(expected));
+
+    state.load(ByteBuffer.wrap(snapshot));
+    check(check.run(emu, before, after) == expected, "same machine continues identically");
+
+    Headless other = check.machine();
+    state(other).load(ByteBuffer.wrap(snapshot));
+    check(check.run(other, before, after) == expected, "new machine continues identically");
+
+    other = check.machine();
+    state(other).load(file.getPath());
+    check(check.run(other, before, after) == expected, "machine loaded from a file continues identically");
+
+    byte[] truncated = new byte[snapshot.length / 2], overlong = new byte[snapshot.length + 1];
+    System.arraycopy(snapshot, 0, truncated, 0, truncated.length);
+    System.arraycopy(snapshot, 0, overlong, 0, snapshot.length);
+    check(rejected(emu, file.getPath(), truncated), "truncated file rejected, machine untouched");
+    check(rejected(emu, file.getPath(), overlong), "overlong file rejected, machine untouched");
+
+    int times = 10000;
+    long start = System.nanoTime();
+    for(int i=0; i < times; i++) state.save();
+    long saved = System.nanoTime();
+    for(int i=0; i < times; i++) state.load(ByteBuffer.wrap(snapshot));
+    long loaded = System.nanoTime();
+    System.out.println("SAVESTATE: save " + (saved - start) / times / 1000.0 + " us, load " + (loaded - saved) / times / 1000.0 + " us");
+  }
+}
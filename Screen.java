@@ -6,32 +6,23 @@ public final class Screen {
   int           width, height, numPixels;
   Component     drawsurface;
   BufferedImage screen;
-  int           fpixels[];  // for pixel color comparing
-  Graphics2D    g, g2;
+  int           pixels[];  // backing array of the image, one RGB int per pixel
+  Graphics2D    g;
   Window        win;
   boolean       fullscreen;
+  volatile String status;  // short text drawn over the picture, e.g. the fast-forward speed
   
   public Screen(Component drawsurface, int width, int height) {
     this.drawsurface = drawsurface;
     this.width     = width;
     this.height    = height;
     this.numPixels = this.width * this.height;
-    fpixels = new int[numPixels];
-    Arrays.fill(fpixels, 0xFFFFFF);
     fullscreen = false;
     
-    // Standard way to create a buffered image
-    //this.screen = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
-    
-    // Create a buffered image compatible with the current graphics
-    // environment color model. Should be faster but turns out that
-    // there's no much difference, so it's here just for future reference.
-    this.screen = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration().createCompatibleImage(width, height);
-
-    this.screen.getGraphics().setColor(new Color(0));
-
-    g2 = (Graphics2D)screen.getGraphics();
-    g2.setBackground(new Color(0, 0, 0));
+    // A TYPE_INT_RGB image lets the VDP write pixels straight into its data
+    // buffer instead of going through setRGB and the color model.
+    this.screen = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+    pixels = ((DataBufferInt)screen.getRaster().getDataBuffer()).getData();
   }
   
   public void setDrawsurface(Component d) {
@@ -39,17 +30,12 @@ public final class Screen {
   }
 
   public final void setPixel(int x, int y, int color) {
-  	int location = x + (y * width);
-  	if((x > 0) && (x < width) && (y > 0) && (y < height) && (fpixels[location] != color)) { // clip and avoid calling setRGB for repeated pixel colours
-  	  screen.setRGB(x, y, color);
-  	  fpixels[location] = color;
-  	}
+  	if((x >= 0) && (x < width) && (y >= 0) && (y < height)) // clip
+  	  pixels[x + (y * width)] = color;
   }
   
   public final void clearBuffer() {
-	g2.setColor(new Color(0));
-	g2.fillRect(0, 0, width, height);
-	Arrays.fill(fpixels, 0);
+	Arrays.fill(pixels, 0);
   }
 
   public final void fillRect(int x, int y, int width, int height, int color) {
@@ -59,11 +45,18 @@ public final class Screen {
   }
 
   public final void drawScreen(int x, int y) {
+  	if(drawsurface == null) return; // headless, nothing to draw on
   	if(g == null) g = (Graphics2D)drawsurface.getGraphics();
   	
 	if(!fullscreen) g.drawImage(this.screen, x, y, drawsurface.getWidth(), drawsurface.getHeight(), drawsurface);
   	//if(!fullscreen) g.drawImage(this.screen, x, y, width, height, drawsurface);
 	else g.drawImage(this.screen, 32, 0, drawsurface);
+	
+	String s = status;
+	if(s != null) {
+	  g.setColor(Color.white);
+	  g.drawString(s, x + 4, y + 14);
+	}
   }
   
   public void toggleFullScreen(Remaster frame) {
@@ -0,0 +1,67 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Binary instruction trace: one fixed width record per executed instruction,
+ * written into a ring of preallocated records in a memory mapped file, so the
+ * newest records survive even if the emulator dies. Nothing is formatted while
+ * tracing; TraceDecoder turns a trace file into text with disassembly.
+ *
+ * File layout: a 32 byte header ("RMTR" magic, version, record size, capacity
+ * in records, records written so far as a long) followed by the ring. Record i
+ * is at slot i % capacity. The count in the header is stored with every record,
+ * so the file can be decoded whenever the writer stops. Each record holds:
+ *
+ *   long  cycle       EZ80.cycle() before the instruction
+ *   short pc, sp
+ *   byte  x4          the 4 bytes at pc (opcode and operands, unused ones included)
+ *   short af, bc, de, hl
+ *
+ * Instructions fast-forwarded by the idle loop skip (see EZ80.skipIdle) are
+ * traced once; the jump in the cycle column shows how long they ran.
+ */
+
+public final class Trace {
+  static final int MAGIC   = 0x524D5452; // "RMTR"
+  static final int VERSION = 1;
+  static final int HEADER  = 32;
+  static final int RECORD  = 24;
+
+  private RandomAccessFile file;
+  private MappedByteBuffer buffer;
+  private int mask;                     // capacity - 1
+  private long count;
+
+  /* public Trace(String path, int records)
+   *   Creates the trace file, holding the newest "records" instructions
+   *   (rounded up to a power of two).
+   */
+  public Trace(String path, int records) throws IOException {
+    int capacity = Integer.highestOneBit(Math.max(records - 1, 1)) << 1;
+    mask = capacity - 1;
+    file = new RandomAccessFile(path, "rw");
+    file.setLength(0);
+    buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)capacity * RECORD);
+    buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, RECORD).putInt(12, capacity).putLong(16, 0);
+  }
+
+  final void record(EZ80 z80, MemoryManager memory) {
+    int pc = z80.pc & 0xFFFF, at = HEADER + (int)(count & mask) * RECORD;
+    buffer.putLong(at, z80.cycle());
+    buffer.putInt(at + 8, (pc << 16) | (z80.sp & 0xFFFF));
+    buffer.putInt(at + 12, (memory.readbyte(pc) << 24) | (memory.readbyte(pc + 1) << 16) | (memory.readbyte(pc + 2) << 8) | memory.readbyte(pc + 3));
+    buffer.putLong(at + 16, ((long)(((z80.a & 0xFF) << 8) | (z80.flagreg & 0xFF)) << 48) | ((long)(((z80.b & 0xFF) << 8) | (z80.c & 0xFF)) << 32)
+                            | ((long)(((z80.d & 0xFF) << 8) | (z80.e & 0xFF)) << 16) | ((z80.h & 0xFF) << 8) | (z80.l & 0xFF));
+    buffer.putLong(16, ++count);
+  }
+
+  public long count() {
+    return count;
+  }
+
+  public void close() throws IOException {
+    buffer.force();
+    file.close();
+  }
+}
@@ -0,0 +1,120 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Turns a binary trace (see Trace) into text, oldest instruction first, with
+ * one line per instruction:
+ *
+ *   cycle  PC  bytes  instruction  AF= BC= DE= HL= SP=
+ *
+ * Mnemonics come from Mnemonic; "nn", "n", "d" and "e" are replaced by the
+ * operand bytes and IX/IY by the prefix in use.
+ *
+ * Usage: java -cp Remaster.jar TraceDecoder <trace> [last N records]
+ */
+
+public final class TraceDecoder {
+  Mnemonic opcodes = new Mnemonic();
+
+  /* public String disassemble(int pc, int[] b)
+   *   The instruction made of the bytes b[0..3] found at pc.
+   */
+  public String disassemble(int pc, int[] b) {
+    switch(b[0]) {
+      case 0xCB:
+        return opcodes.getCB(b[1]);
+      case 0xED:
+        return operands(opcodes.getED(b[1]), b, 2, pc);
+      case 0xDD:
+      case 0xFD:
+        String index = (b[0] == 0xDD) ? "IX" : "IY";
+        if(b[1] == 0xCB) // DD CB d op
+          return opcodes.getCB(b[3]).replace("(HL)", "(" + index + displacement(b[2]) + ")");
+        String s = opcodes.getIndex(b[1]);
+        boolean hasDisplacement = s.indexOf("I+d") >= 0;
+        s = s.replace("I+d", "(" + index + displacement(b[2]) + ")").replace("Ih", index + "h").replace("Il", index + "l");
+        s = s.replaceAll("\\bI\\b", index);
+        return operands(s, b, hasDisplacement ? 3 : 2, pc);
+      default:
+        return operands(opcodes.getOP(b[0]), b, 1, pc);
+    }
+  }
+
+  // Fills in "nn", "n" and the relative jump "(PC+e)" from the operand bytes at b[at].
+  private static String operands(String s, int[] b, int at, int pc) {
+    if(s.indexOf("nn") >= 0) return s.replace("nn", "$" + hex(b[at] | (b[at + 1] << 8), 4));
+    if(s.indexOf("(PC+e)") >= 0 || s.equals("JR") || s.equals("DJNZ"))
+      return s.replace(",(PC+e)", "") + " $" + hex((pc + 2 + (byte)b[at]) & 0xFFFF, 4);
+    if(s.matches(".*\\bn\\b.*")) return s.replaceAll("\\bn\\b", "\\$" + hex(b[at], 2));
+    if(s.endsWith(",")) return s + "$" + hex(b[at], 2);  // "LD (HL),", "ADD A,"...
+    return s;
+  }
+
+  private static String displacement(int d) {
+    d = (byte)d;
+    return (d < 0 ? "-$" : "+$") + hex(Math.abs(d), 2);
+  }
+
+  static String hex(int v, int digits) {
+    String s = Integer.toHexString(v).toUpperCase();
+    while(s.length() < digits) s = "0" + s;
+    return s;
+  }
+
+  /* public void decode(ByteBuffer trace, long last, PrintStream out)
+   *   Prints the newest "last" records of a trace file (all of them with 0).
+   */
+  public void decode(ByteBuffer trace, long last, PrintStream out) throws IOException {
+    if(trace.getInt(0) != Trace.MAGIC) throw new IOException("not a trace");
+    int version = trace.getInt(4);
+    if(version != Trace.VERSION) throw new IOException("unsupported trace version " + version);
+    int recordSize = trace.getInt(8), capacity = trace.getInt(12);
+    long count = trace.getLong(16);
+
+    long first = Math.max(count - capacity, 0);
+    if(last > 0) first = Math.max(first, count - last);
+    int[] b = new int[4];
+    StringBuilder line = new StringBuilder(96);
+    for(long i = first; i < count; i++) {
+      int at = Trace.HEADER + (int)(i % capacity) * recordSize;
+      long cycle = trace.getLong(at);
+      int pcsp = trace.getInt(at + 8), bytes = trace.getInt(at + 12);
+      long regs = trace.getLong(at + 16);
+      int pc = pcsp >>> 16;
+      for(int j=0; j < 4; j++) b[j] = (bytes >>> (24 - 8 * j)) & 0xFF;
+
+      line.setLength(0);
+      String c = Long.toString(cycle);
+      for(int j = c.length(); j < 12; j++) line.append(' ');
+      line.append(c).append("  ").append(hex(pc, 4)).append("  ");
+      for(int j=0; j < 4; j++) line.append(hex(b[j], 2)).append(' ');
+      line.append(' ');
+      String ins = disassemble(pc, b);
+      line.append(ins);
+      for(int j = ins.length(); j < 22; j++) line.append(' ');
+      line.append(" AF=").append(hex((int)(regs >>> 48) & 0xFFFF, 4));
+      line.append(" BC=").append(hex((int)(regs >>> 32) & 0xFFFF, 4));
+      line.append(" DE=").append(hex((int)(regs >>> 16) & 0xFFFF, 4));
+      line.append(" HL=").append(hex((int)regs & 0xFFFF, 4));
+      line.append(" SP=").append(hex(pcsp & 0xFFFF, 4));
+      out.println(line);
+    }
+  }
+
+  public static void main(String args[]) throws IOException {
+    if(args.length < 1) {
+      System.out.println("Usage: TraceDecoder <trace> [last N records]");
+      System.exit(1);
+    }
+    long last = (args.length > 1) ? Long.parseLong(args[1]) : 0;
+    RandomAccessFile file = new RandomAccessFile(args[0], "r");
+    try {
+      ByteBuffer trace = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16));
+      new TraceDecoder().decode(trace, last, out);
+      out.flush();
+    }
+    finally { file.close(); }
+  }
+}
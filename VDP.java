@@ -8,6 +8,12 @@ public final class VDP {
   byte[] cram;
   int[] regs;
   int[] palette;
+  int[] linebuf; // scanline being rendered, copied to the screen in one go
+  int[] foreline; // Tiles with priority = 1
+  int[] spr_x, spr_y, spr_index; // 8 sprite buffer
+  byte[] tiles, tilesFlipped; // decoded palette index of every pixel of the 512 tiles, plain and mirrored
+  boolean[] tileDirty;        // tiles whose pattern changed in vram since they were decoded
+  public long tileHits, tileDecodes;
   int address;
   int status, latch, code, readbuf, vscroll_buf;
   boolean WaitAddress;
@@ -19,6 +25,14 @@ public final class VDP {
     vram = new byte[0x4000];
     cram = new byte[40];
     regs = new int[16];
+    linebuf = new int[320];
+    foreline = new int[320];
+    spr_x = new int[8];
+    spr_y = new int[8];
+    spr_index = new int[8];
+    tiles = new byte[512 * 64];
+    tilesFlipped = new byte[512 * 64];
+    tileDirty = new boolean[512];
 
     initPal(); // Setup BBGGRR -> 24bit RGB conversion values
     reset();
@@ -28,6 +42,7 @@ public final class VDP {
     Arrays.fill(vram, (byte)0);
     Arrays.fill(cram, (byte)0);
     Arrays.fill(regs, 0);
+    Arrays.fill(tileDirty, true);
     
     regs[2] = 0x0E;
     regs[5] = 0x7E;
@@ -70,6 +85,7 @@ public final class VDP {
        cram[address & 0X1F] = (byte)(val & 0xFF);
     else {
         vram[(address & 0x3FFF)] = (byte)(val & 0xFF);
+        tileDirty[(address & 0x3FFF) >> 5] = true;
 //        if(address < 0x2000) System.out.println("VRAM WRITE");
     }
 
@@ -106,6 +122,26 @@ public final class VDP {
   	else regs[reg] = val & 0xFF;
   }
   
+  public void saveState(java.nio.ByteBuffer buf) {
+    buf.put(vram).put(cram);
+    for(int i=0; i < 16; i++) buf.put((byte)regs[i]);
+    buf.putShort((short)address).put((byte)status).put((byte)latch).put((byte)code);
+    buf.put((byte)readbuf).put((byte)vscroll_buf).put((byte)(WaitAddress ? 1 : 0));
+    buf.putInt(hintcounter).putInt(scanline);
+  }
+
+  public void loadState(java.nio.ByteBuffer buf) {
+    for(int i=0; i < 0x4000; i++) { // only tiles that differ need decoding again
+      byte v = buf.get();
+      if(vram[i] != v) { vram[i] = v; tileDirty[i >> 5] = true; }
+    }
+    buf.get(cram);
+    for(int i=0; i < 16; i++) regs[i] = buf.get() & 0xFF;
+    address = buf.getShort() & 0x3FFF; status = buf.get() & 0xFF; latch = buf.get() & 0xFF; code = buf.get() & 0xFF;
+    readbuf = buf.get() & 0xFF; vscroll_buf = buf.get() & 0xFF; WaitAddress = buf.get() != 0;
+    hintcounter = buf.getInt(); scanline = buf.getInt();
+  }
+
   public void dumpMemory() {
   	try {
   	  FileOutputStream memdump = new FileOutputStream(new File("vram.bin"));
@@ -148,10 +184,30 @@ public final class VDP {
 	}
   }
 
+  // Converts the 4 bitplanes of a tile into one palette index per pixel.
+  private void decodeTile(int tile) {
+  	int b0, b1, b2, b3, index, pixel, shift;
+  	for(int j = 0; j < 8; j++) {
+  	  index = (tile << 5) + (j << 2);
+  	  b0 = vram[index]; b1 = vram[index+1]; b2 = vram[index+2]; b3 = vram[index+3];
+  	  pixel = (tile << 6) + (j << 3);
+  	  for(int k = 0; k < 8; k++) {
+  	  	shift = 7 - k;
+  	  	tiles[pixel + k] = tilesFlipped[pixel + 7 - k] = (byte)(((b0 >> shift) & 1) | (((b1 >> shift) & 1) << 1) | (((b2 >> shift) & 1) << 2) | (((b3 >> shift) & 1) << 3));
+  	  }
+  	}
+  	tileDirty[tile] = false;
+  	tileDecodes++;
+  }
+
   public final void renderLine() {
   	int scan = scanline;
-    int[] foreline = new int[320]; // Tiles with priority = 1
-    int spr_x[] = new int[8], spr_y[] = new int[8], spr_index[] = new int[8]; // 8 sprite buffer
+    int[] foreline = this.foreline, spr_x = this.spr_x, spr_y = this.spr_y, spr_index = this.spr_index;
+    int[] line = linebuf; // x coordinates in line[] are shifted 8 pixels right to allow for clipping
+
+    Arrays.fill(foreline, 0);
+
+    System.arraycopy(screen.pixels, scan * screen.width, line, 8, 256); // pixels not covered by the background keep their colour
 
   	int baseAddress = (regs[2] & 0xE) << 10; // Name table base address in VRAM
 
@@ -179,11 +235,12 @@ public final class VDP {
 	int tileRow = i >> 3, tileLine = i & 0x7;
 
   	// Tile definition in nametable
-  	int tileDef, tileIndex, tline, whichpal, priority, flipX, flipY;
+  	int tileDef, tileIndex, whichpal, priority, flipX, flipY;
+  	byte[] pattern;
   	
 	// Cycle through background table
   	int regs0 = regs[0], regs2 = regs[2];
-	for(i = 0, x = finescrollH; i < 32; i++, x += 8) {  // tile counter
+	for(i = 0, x = finescrollH + 8; i < 32; i++, x += 8) {  // tile counter
   		// adjust vertical scroll values for columns 24 to 31
   		if((i > 23) && ((regs0 & 0x80) != 0)) {
   			tileRow = scan >> 3;
@@ -209,77 +266,18 @@ public final class VDP {
   		flipY     = tileDef & 0x400;
   		flipX     = tileDef & 0x200;
 
-  		if(flipY != 0) tileIndex = (tileIndex << 5) + (28 - (tileLine << 2));
-  	    else           tileIndex = (tileIndex << 5) + (tileLine << 2);
+  		// fetch the decoded tile row (pre-flipped horizontally if needed)
+  		if(tileDirty[tileIndex]) decodeTile(tileIndex);
+  		else tileHits++;
+  		pattern = (flipX != 0) ? tilesFlipped : tiles;
+  		if(flipY != 0) p = (tileIndex << 6) + ((7 - tileLine) << 3);
+  		else           p = (tileIndex << 6) + (tileLine << 3);
 
-  		// retrieve tile line from vram and store it in a 32bit local variable for faster access
-  		tline = ((vram[tileIndex] & 0xFF) << 24) | ((vram[tileIndex + 1] & 0xFF) << 16) | ((vram[tileIndex + 2] & 0xFF) << 8) | (vram[tileIndex + 3] & 0xFF);
-  		// START OF TILE LINE RENDERING CODE ------------------------------------------------------
-  		// Render pixel 1 of 8
-		cramval  = (tline >> 31) & 1;
-		cramval |= (tline >> 22) & 2;
-		cramval |= (tline >> 13) & 4;
-		cramval |= (tline >>  4) & 8;
-		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 7, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 7] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x] = cramval & 0x1F;
-  		// Render pixel 2 of 8
-  		cramval  = (tline >> 30) & 1;
-  		cramval |= (tline >> 21) & 2;
-  		cramval |= (tline >> 12) & 4;
-  		cramval |= (tline >> 3) & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 6, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 6] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 1, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 1] = cramval & 0x1F;
-  		// Render pixel 3 of 8
-  		cramval  = (tline >> 29) & 1;
-  		cramval |= (tline >> 20) & 2;
-  		cramval |= (tline >> 11) & 4;
-  		cramval |= (tline >> 2) & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 5, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 5] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 2, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 2] = cramval & 0x1F;
-  		// Render pixel 4 of 8
-  		cramval  = (tline >> 28) & 1;
-  		cramval |= (tline >> 19) & 2;
-  		cramval |= (tline >> 10) & 4;
-  		cramval |= (tline >> 1) & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 4, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 4] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 3, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 3] = cramval & 0x1F;
-  		// Render pixel 5 of 8
-  		cramval  = (tline >> 27) & 1;
-  		cramval |= (tline >> 18) & 2;
-  		cramval |= (tline >>  9) & 4;
-  		cramval |= tline & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 3, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 3] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 4, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 4] = cramval & 0x1F;
-  		// Render pixel 6 of 8
-  		cramval  = (tline >> 26) & 1;
-  		cramval |= (tline >> 17) & 2;
-  		cramval |= (tline >>  8) & 4;
-  		cramval |= (tline <<  1) & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 2, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 2] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 5, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 5] = cramval & 0x1F;
-  		// Render pixel 7 of 8 
-  		cramval  = (tline >> 25) & 1;
-  		cramval |= (tline >> 16) & 2;
-  		cramval |= (tline >>  7) & 4;
-  		cramval |= (tline <<  2) & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 1, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 1] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 6, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 6] = cramval & 0x1F;
-  		// Render pixel 8 of 8
-  		cramval  = (tline >> 24) & 1;
-  		cramval |= (tline >> 15) & 2;
-  		cramval |= (tline >>  6) & 4;
-  		cramval |= (tline <<  3) & 8;
-  		cramval |= whichpal;
-  		if(flipX != 0) if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x] = cramval & 0x1F;
-  		else           if(priority == 0 || (cramval & 0xF) == 0) screen.setPixel(x + 7, scan, palette[cram[cramval & 0x1F] & 0x3F]); else foreline[x + 7] = cramval & 0x1F;
-  		// END OF TILE LINE RENDERING CODE -------------------------------------
+  		for(int k = 0; k < 8; k++) {
+  			cramval = pattern[p + k] | whichpal;
+  			if(priority == 0 || (cramval & 0xF) == 0) line[x + k] = palette[cram[cramval] & 0x3F];
+  			else foreline[x + k] = cramval;
+  		}
   	}
 	
 	// START OF SPRITE LINE RENDERING CODE ---------------------------------
@@ -301,7 +299,7 @@ public final class VDP {
 		if((y > scan - spr_size) && (y <= scan)) {
 			if(buf_count < 8) { // check if 8 sprite buffer is full
 				spr_y[buf_count] = y;
-				spr_x[buf_count] = vram[baseAddress + 0x80 + (maxIndex << 1)] & 0xFF;
+				spr_x[buf_count] = (vram[baseAddress + 0x80 + (maxIndex << 1)] & 0xFF) + 8;
 				// check if sprite is shifted left 8 pixels
 				if((regs0 & 0x8)!= 0) spr_x[buf_count] -= 8;
 				spr_index[buf_count] = vram[baseAddress + 0x81 + (maxIndex << 1)] & 0xFF;
@@ -320,99 +318,37 @@ public final class VDP {
 	
 	// draw sprites currently stored in buffer
 	for(i=buf_count-1; i >= 0; i--) {
-		tileLine = scan - spr_y[i];
-		tileLine = (spr_index[i] << 5) + (tileLine << 2);
-		tline = ((vram[tileLine] & 0xFF) << 24) | ((vram[tileLine+1] & 0xFF) << 16) | ((vram[tileLine+2] & 0xFF) << 8) | (vram[tileLine+3] & 0xFF);
-		// render pixel 1 of 8 in sprite line
-		cramval  = (tline >> 31) & 1;
-		cramval |= (tline >> 22) & 2;
-		cramval |= (tline >> 13) & 4;
-		cramval |= (tline >>  4) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i], scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 2 of 8 in sprite line
-  		cramval  = (tline >> 30) & 1;
-  		cramval |= (tline >> 21) & 2;
-  		cramval |= (tline >> 12) & 4;
-  		cramval |= (tline >> 3) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+1, scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 3 of 8 in sprite line
-  		cramval  = (tline >> 29) & 1;
-  		cramval |= (tline >> 20) & 2;
-  		cramval |= (tline >> 11) & 4;
-  		cramval |= (tline >> 2) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+2, scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 4 of 8 in sprite line
-  		cramval  = (tline >> 28) & 1;
-  		cramval |= (tline >> 19) & 2;
-  		cramval |= (tline >> 10) & 4;
-  		cramval |= (tline >> 1) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+3, scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 5 of 8 in sprite line
-  		cramval  = (tline >> 27) & 1;
-  		cramval |= (tline >> 18) & 2;
-  		cramval |= (tline >>  9) & 4;
-  		cramval |= tline & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+4, scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 6 of 8 in sprite line
-  		cramval  = (tline >> 26) & 1;
-  		cramval |= (tline >> 17) & 2;
-  		cramval |= (tline >>  8) & 4;
-  		cramval |= (tline <<  1) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+5, scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 7 of 8 in sprite line
-  		cramval  = (tline >> 25) & 1;
-  		cramval |= (tline >> 16) & 2;
-  		cramval |= (tline >>  7) & 4;
-  		cramval |= (tline <<  2) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+6, scan, palette[cram[cramval & 0x1F] & 0x3F]);
-		}
-		// render pixel 8 of 8 in sprite line
-  		cramval  = (tline >> 24) & 1;
-  		cramval |= (tline >> 15) & 2;
-  		cramval |= (tline >>  6) & 4;
-  		cramval |= (tline <<  3) & 8;
-		if(cramval != 0) {   // transparency test
-			cramval |= 0x10; // selects sprite palette
-			screen.setPixel(spr_x[i]+7, scan, palette[cram[cramval & 0x1F] & 0x3F]);
+		tileLine = (spr_index[i] << 3) + (scan - spr_y[i]); // row 8 and up of a 8x16 sprite is in the next tile
+		tileIndex = tileLine >> 3;
+		if(tileDirty[tileIndex]) decodeTile(tileIndex);
+		else tileHits++;
+		p = tileLine << 3;
+		x = spr_x[i];
+		for(int k = 0; k < 8; k++) {
+			cramval = tiles[p + k];
+			if(cramval != 0)  // transparency test
+				line[x + k] = palette[cram[cramval | 0x10] & 0x3F]; // selects sprite palette
 		}
 	}
 	// END OF SPRITE LINE RENDERING CODE ------------------------------
 	
 	// DRAW BACKGROUND WITH HIGH PRIORITY OVER SPRITES
-	for(i=0; i < 256; i++) 
-		if((foreline[i] & 0xF) != 0) screen.setPixel(i, scan, palette[cram[foreline[i]] & 0x3F]);
+	for(i=8; i < 264; i++) 
+		if((foreline[i] & 0xF) != 0) line[i] = palette[cram[foreline[i]] & 0x3F];
 		
     	// blank first column
 	if(((regs[0] & 0x20) != 0)) {
 		int color = palette[cram[regs[7] & 0xF] & 0x3F]; // backdrop color
-		screen.setPixel(0, scan, color);
-		screen.setPixel(1, scan, color);
-		screen.setPixel(2, scan, color);
-		screen.setPixel(3, scan, color);
-		screen.setPixel(4, scan, color);
-		screen.setPixel(5, scan, color);
-		screen.setPixel(6, scan, color);
-		screen.setPixel(7, scan, color);
+		line[8] = color;
+		line[9] = color;
+		line[10] = color;
+		line[11] = color;
+		line[12] = color;
+		line[13] = color;
+		line[14] = color;
+		line[15] = color;
 	}
+
+	System.arraycopy(line, 8, screen.pixels, scan * screen.width, 256);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+import java.io.*;
+
+/*
+ * Runs a CP/M program on the Z80 core alone, for instruction exercisers such
+ * as zexdoc.com and zexall.com: the program is loaded at $0100 into 64k of
+ * flat RAM, and the two BDOS calls they use (2: print the character in E,
+ * 9: print the "$" terminated string at DE) are trapped through an OUT in the
+ * BDOS the entry at $0005 jumps to. Returning to $0000 ends the run. Prints the program's output,
+ * then the cycles run and the emulated speed in MHz, so the same run doubles
+ * as a throughput benchmark of the core.
+ * Exits with status 1 if the output reports an ERROR.
+ *
+ * Usage: java -Djava.awt.headless=true -cp Remaster.jar ZexRunner <program.com>
+ */
+
+public final class ZexRunner {
+  static final int BDOS = 0, EXIT = 1;     // trap ports
+  static final int TOP = 0xFE00;           // top of the program area, where the BDOS lives
+
+  EZ80 z80;
+  FlatMemory memory;
+  StringBuilder output = new StringBuilder();
+  boolean done;
+
+  // 64k of RAM, no mapper.
+  static final class FlatMemory extends MemoryManager {
+    final byte[] ram = new byte[0x10000];
+
+    FlatMemory() {
+      super(null);
+    }
+
+    public int readbyte(int addr) {
+      return ram[addr & 0xFFFF] & 0xFF;
+    }
+
+    public int readsigned(int addr) {
+      return ram[addr & 0xFFFF];
+    }
+
+    public void writebyte(int addr, int value) {
+      ram[addr & 0xFFFF] = (byte)value;
+    }
+
+    public int romOffset(int addr) {
+      return -1;
+    }
+  }
+
+  // Ports that only answer the traps.
+  final class TrapPorts extends Ports {
+    TrapPorts() {
+      super(null, null, null);
+    }
+
+    public int read(int port) {
+      return 0xFF;
+    }
+
+    public void write(int port, int value) {
+      if((port & 0xFF) == EXIT) { done = true; return; }
+      if((port & 0xFF) != BDOS) return;
+      if(z80.c == 2) print(z80.e);
+      else if(z80.c == 9)
+        for(int addr = (z80.d << 8) | z80.e; memory.readbyte(addr) != '$'; addr++) print(memory.readbyte(addr));
+    }
+  }
+
+  public ZexRunner(byte[] program) {
+    memory = new FlatMemory();
+    System.arraycopy(program, 0, memory.ram, 0x100, Math.min(program.length, 0x10000 - 0x100));
+    // $0000: OUT (EXIT),A; HALT    $0005: JP TOP (programs read the top of memory from it)
+    // TOP: OUT (BDOS),A; RET
+    byte[] page0 = { (byte)0xD3, EXIT, 0x76, 0, 0, (byte)0xC3, (byte)TOP, (byte)(TOP >> 8) };
+    byte[] bdos = { (byte)0xD3, BDOS, (byte)0xC9 };
+    System.arraycopy(page0, 0, memory.ram, 0, page0.length);
+    System.arraycopy(bdos, 0, memory.ram, TOP, bdos.length);
+
+    z80 = new EZ80(memory, new TrapPorts(), null, null);
+    z80.pc = 0x100;
+    z80.sp = TOP;
+  }
+
+  void print(int c) {
+    System.out.print((char)c);
+    System.out.flush();
+    output.append((char)c);
+  }
+
+  public void run() {
+    while(!done) z80.execute(1 << 16);
+  }
+
+  public static void main(String args[]) throws IOException {
+    if(args.length < 1) {
+      System.out.println("Usage: ZexRunner <program.com>");
+      System.exit(1);
+    }
+    File file = new File(args[0]);
+    byte[] program = new byte[(int)file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try { in.readFully(program); }
+    finally { in.close(); }
+
+    ZexRunner runner = new ZexRunner(program);
+    long start = System.nanoTime();
+    runner.run();
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.println();
+    System.out.println("ZEX: " + runner.z80.cycles + " cycles in " + seconds + " s, " + (runner.z80.cycles / seconds / 1e6) + " MHz");
+    if(runner.output.indexOf("ERROR") >= 0) System.exit(1);
+  }
+}